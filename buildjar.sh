@@ -5,6 +5,11 @@ rm -f mapwarper.jar
 cd src
 find -name '*.class' -delete
 find -name '*.java' | xargs javac
+# The SIMD supersampling kernel is optional; without it the plain one is used.
+if ! find ../src-vector -name '*.java' |
+    xargs javac -nowarn --add-modules jdk.incubator.vector -cp . -d . ; then
+  echo "Building without the vector API kernel"
+fi
 jar --create --file=../mapwarper.jar --main-class=net.makholm.henning.mapwarper.Mapwarper \
   `find * -name *.png -o -name *.class`
 find -name '*.class' -delete
@@ -0,0 +1,50 @@
+package net.makholm.henning.mapwarper;
+
+import java.util.Deque;
+
+import net.makholm.henning.mapwarper.georaster.TileImageDecoderBenchmark;
+import net.makholm.henning.mapwarper.gui.maprender.RenderBenchmark;
+import net.makholm.henning.mapwarper.gui.maprender.SampleKernelBenchmark;
+import net.makholm.henning.mapwarper.tiles.DownloadBenchmark;
+import net.makholm.henning.mapwarper.tiles.TileCacheBenchmark;
+import net.makholm.henning.mapwarper.util.NiceError;
+
+/**
+ * Measurements of the performance-critical parts of the program, for
+ * checking that changes to them actually help. The first word names the
+ * benchmark; the rest are options for it.
+ */
+final class BenchmarkCommand extends Mapwarper.Command {
+
+  BenchmarkCommand(Mapwarper common) {
+    super(common);
+  }
+
+  @Override
+  protected void run(Deque<String> words) {
+    if( words.isEmpty() )
+      throw NiceError.of(
+          "Which benchmark? Try tilecache, downloads, decoder, render or kernel");
+    String which = words.removeFirst();
+    switch( which ) {
+    case "tilecache":
+      TileCacheBenchmark.run(common.tileContext, words, System.out);
+      break;
+    case "downloads":
+      DownloadBenchmark.run(common.tileContext, words, System.out);
+      break;
+    case "decoder":
+      TileImageDecoderBenchmark.run(words, System.out);
+      break;
+    case "render":
+      RenderBenchmark.run(common.tileContext, words, System.out);
+      break;
+    case "kernel":
+      SampleKernelBenchmark.run(words, System.out);
+      break;
+    default:
+      throw NiceError.of("Unknown benchmark '%s'", which);
+    }
+  }
+
+}
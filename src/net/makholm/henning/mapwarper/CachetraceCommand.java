@@ -0,0 +1,51 @@
+package net.makholm.henning.mapwarper;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Deque;
+
+import net.makholm.henning.mapwarper.tiles.CacheTrace;
+import net.makholm.henning.mapwarper.util.NiceError;
+
+/**
+ * Replay a trace of RAM cache lookups (recorded with the trace attribute
+ * of {@code <ramCache>}) against simulated caches of various sizes.
+ */
+final class CachetraceCommand extends Mapwarper.Command {
+
+  CachetraceCommand(Mapwarper common) {
+    super(common);
+  }
+
+  @Override
+  protected void run(Deque<String> words) {
+    if( words.isEmpty() )
+      throw NiceError.of("Missing trace file name");
+    Path file = Path.of(words.removeFirst());
+    if( !Files.isRegularFile(file) )
+      throw NiceError.of("%s does not exist", file);
+
+    long[] capacities;
+    if( words.isEmpty() ) {
+      capacities = new long[] { 64L << 20, 256L << 20, 1024L << 20 };
+    } else {
+      capacities = new long[words.size()];
+      for( int i=0; i<capacities.length; i++ ) {
+        String word = words.removeFirst();
+        try {
+          capacities[i] = Long.parseLong(word) << 20;
+        } catch( NumberFormatException e ) {
+          throw NiceError.of("'%s' is not a number of megabytes", word);
+        }
+      }
+    }
+
+    try {
+      CacheTrace.replay(file, capacities, System.out);
+    } catch( IOException e ) {
+      throw NiceError.of("Could not read %s: %s", file, e);
+    }
+  }
+
+}
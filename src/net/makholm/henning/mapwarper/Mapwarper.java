@@ -151,6 +151,10 @@ public class Mapwarper {
     VERBS.put("maplink", MaplinkCommand::new);
     VERBS.put("tileurl", TileurlCommand::new);
     VERBS.put("downloadtile", DownloadtileCommand::new);
+    VERBS.put("prefetch", PrefetchCommand::new);
+    VERBS.put("packtiles", PacktilesCommand::new);
+    VERBS.put("cachetrace", CachetraceCommand::new);
+    VERBS.put("benchmark", BenchmarkCommand::new);
     VERBS.put("gui", GuiCommand::new);
   }
 
@@ -0,0 +1,36 @@
+package net.makholm.henning.mapwarper;
+
+import java.io.IOException;
+import java.util.Deque;
+
+import net.makholm.henning.mapwarper.tiles.DiskCachedTileset;
+import net.makholm.henning.mapwarper.util.NiceError;
+
+/**
+ * Move a tileset's disk cache from one file per tile into packs, and
+ * compact packs where many tiles have been replaced.
+ */
+final class PacktilesCommand extends Mapwarper.Command {
+
+  PacktilesCommand(Mapwarper common) {
+    super(common);
+  }
+
+  @Override
+  protected void run(Deque<String> words) {
+    theseShouldAllBeSpecial(words);
+    var tileset0 = common.tilesWithDefault(null);
+    if( !(tileset0 instanceof DiskCachedTileset tiles) )
+      throw NiceError.of("'%s' doesn't have a disk cache to pack",
+          tileset0.name);
+    try {
+      int moved = tiles.importFilesIntoPacks();
+      System.err.println("Moved "+moved+" "+tiles.name+" tiles into packs.");
+      long freed = tiles.compactPacks();
+      System.err.println("Compacting freed "+freed+" bytes.");
+    } catch( IOException e ) {
+      throw NiceError.of("Packing failed: %s", e);
+    }
+  }
+
+}
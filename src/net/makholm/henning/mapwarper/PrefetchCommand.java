@@ -0,0 +1,182 @@
+package net.makholm.henning.mapwarper;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.makholm.henning.mapwarper.georaster.Coords;
+import net.makholm.henning.mapwarper.gui.files.FSCache;
+import net.makholm.henning.mapwarper.gui.files.VectFile;
+import net.makholm.henning.mapwarper.gui.projection.WarpedProjection;
+import net.makholm.henning.mapwarper.tiles.DiskCachedTileset;
+import net.makholm.henning.mapwarper.tiles.TryDownloadLater;
+import net.makholm.henning.mapwarper.util.BackgroundThread;
+import net.makholm.henning.mapwarper.util.NiceError;
+import net.makholm.henning.mapwarper.util.Regexer;
+
+/**
+ * Download every tile within the warp margins of one or more tracks
+ * into the disk cache, so a later {@code warp} (or a GUI session) won't
+ * have to wait for the network.
+ */
+final class PrefetchCommand extends Mapwarper.Command {
+
+  PrefetchCommand(Mapwarper common) {
+    super(common);
+  }
+
+  int minZoom = -1, maxZoom = -1;
+  int parallel = 4;
+
+  @Override
+  protected boolean offerSpecialWord(Regexer re) {
+    if( re.match("z" + Regexer.cNat + "-" + Regexer.cNat) ) {
+      minZoom = Math.min(re.igroup(1), re.igroup(2));
+      maxZoom = Math.max(re.igroup(1), re.igroup(2));
+      return true;
+    } else if( re.match("parallel=" + Regexer.cNat) ) {
+      parallel = Math.max(1, re.igroup(1));
+      return true;
+    } else {
+      return super.offerSpecialWord(re);
+    }
+  }
+
+  private DiskCachedTileset tiles;
+  private long[] todo;
+
+  private final AtomicInteger nextIndex = new AtomicInteger();
+  private final AtomicInteger checked = new AtomicInteger();
+  private final AtomicInteger downloaded = new AtomicInteger();
+  private final AtomicInteger failed = new AtomicInteger();
+  private final AtomicLong bytes = new AtomicLong();
+
+  @Override
+  protected void run(Deque<String> words) {
+    List<Path> vectfileNames = new ArrayList<>();
+    while( !words.isEmpty() &&
+        words.peekFirst().endsWith(VectFile.EXTENSION) ) {
+      Path vectfileName = Path.of(words.removeFirst());
+      if( !Files.isRegularFile(vectfileName) )
+        throw NiceError.of("%s does not exist", vectfileName);
+      vectfileNames.add(vectfileName);
+    }
+    if( vectfileNames.isEmpty() )
+      throw NiceError.of("Missing .vect file name");
+
+    theseShouldAllBeSpecial(words);
+
+    var tileset0 = common.tilesWithDefault("google");
+    if( tileset0 instanceof DiskCachedTileset dct )
+      tiles = dct;
+    else
+      throw NiceError.of("'%s' cannot produce disk files ...", tileset0.name);
+
+    if( minZoom < 0 )
+      minZoom = maxZoom = common.wantedZoom.orElse(18);
+    minZoom = Math.max(minZoom, tiles.coarsestZoom);
+    maxZoom = Math.min(maxZoom, tiles.finestZoom);
+    if( minZoom > maxZoom )
+      throw NiceError.of("%s has no tiles at those zoom levels", tiles.name);
+
+    FSCache fs = new FSCache();
+    Set<Long> wanted = new LinkedHashSet<>();
+    for( Path vectfileName : vectfileNames ) {
+      VectFile vf = fs.getFile(vectfileName);
+      WarpedProjection wp;
+      try {
+        wp = WarpedProjection.create(vf, fs);
+      } catch( WarpedProjection.CannotWarp e ) {
+        throw NiceError.of("Cannot use %s for warping: %s",
+            vectfileName, e.getMessage());
+      }
+      for( int zoom = minZoom; zoom <= maxZoom; zoom++ ) {
+        int z = zoom;
+        // Sample four times per (typical 256-pixel) tile, so none
+        // are missed.
+        wp.sweepMargins(Coords.zoom2pixsize(zoom) * 64.0, p -> {
+          long tile = tiles.makeAddresser(z, p).locate(p);
+          if( tile != 0 ) wanted.add(tile);
+        });
+      }
+    }
+    todo = wanted.stream().mapToLong(Long::longValue).toArray();
+    System.err.println("Checking "+todo.length+" "+tiles.name+
+        " tiles at zoom "+minZoom+(minZoom == maxZoom ? "" : "-"+maxZoom)+
+        " with "+parallel+" parallel downloads ...");
+
+    long starttime = System.nanoTime();
+    var finished = new CountDownLatch(parallel);
+    for( int i=1; i<=parallel; i++ ) {
+      new BackgroundThread("Prefetcher #"+i) {
+        @Override
+        public void run() {
+          try {
+            for( int j; (j = nextIndex.getAndIncrement()) < todo.length; ) {
+              prefetch(todo[j]);
+            }
+          } catch( InterruptedException e ) {
+            scheduleAbort(e, null);
+          } finally {
+            finished.countDown();
+          }
+        }
+      }.start();
+    }
+    try {
+      while( !finished.await(5, TimeUnit.SECONDS) )
+        report(starttime);
+    } catch( InterruptedException e ) {
+      e.printStackTrace();
+    }
+    report(starttime);
+  }
+
+  private void prefetch(long tile) throws InterruptedException {
+    int backoffSecs = 1;
+    for( int attempt = 1; ; attempt++ ) {
+      try {
+        long got = tiles.prefetchTile(tile);
+        if( got >= 0 ) {
+          downloaded.incrementAndGet();
+          bytes.addAndGet(got);
+        }
+        break;
+      } catch( IOException e ) {
+        System.err.println("Failed to download "+tiles.tilename(tile)+
+            ": "+e);
+        failed.incrementAndGet();
+        break;
+      } catch( TryDownloadLater e ) {
+        if( attempt == 3 ) {
+          System.err.println("Giving up on "+tiles.tilename(tile)+
+              " for now");
+          failed.incrementAndGet();
+          break;
+        }
+        Thread.sleep(1000 * backoffSecs);
+        backoffSecs *= 4;
+      }
+    }
+    checked.incrementAndGet();
+  }
+
+  private void report(long starttime) {
+    double secs = (System.nanoTime() - starttime) / 1e9;
+    long b = bytes.get();
+    System.err.printf("  %d/%d tiles checked, %d downloaded "+
+        "(%.1f MB, %.0f kB/s), %d failed%n",
+        checked.get(), todo.length, downloaded.get(),
+        b / 1e6, secs > 0 ? b / 1e3 / secs : 0.0, failed.get());
+  }
+
+}
@@ -46,6 +46,23 @@ implements PixelAddresser {
       y -= refpoint.y;
       return locateByMaxi(E.apply(x, y), N.apply(x, y));
     };
+
+    @Override
+    public int sameTileRun(double[] xs, double[] ys, int from, int to,
+        int[] offsets) {
+      int i = from;
+      for( ; i < to; i++ ) {
+        double x = xs[i], y = ys[i];
+        if( validity != null && !validity.contains(x, y) )
+          break;
+        x -= refpoint.x;
+        y -= refpoint.y;
+        int offset = offsetInSameTile(E.apply(x, y), N.apply(x, y));
+        if( offset < 0 ) break;
+        offsets[i] = offset;
+      }
+      return Math.max(i - from, 1);
+    }
   }
 
   protected double maxix, maxiy;
@@ -68,6 +85,25 @@ implements PixelAddresser {
         pixx >> log2minipixels, pixy >> log2minipixels);
   }
 
+  /**
+   * The pixel index of the given position, in the same coordinates as
+   * for {@link #locateByMaxi}, within the tile last located -- or -1 if
+   * it is in a different tile.
+   */
+  protected final int offsetInSameTile(double easting, double northing) {
+    var tilex = Math.floor(easting);
+    var tiley = Math.floor(northing);
+    if( tilex != Math.floor(maxix) || tiley != Math.floor(maxiy) )
+      return -1;
+    int px = (int)((easting-tilex)*maxipixels);
+    int py = (int)((tiley+1-northing)*maxipixels);
+    if( (px ^ pixx) >> log2minipixels != 0 ||
+        (py ^ pixy) >> log2minipixels != 0 )
+      return -1;
+    int mask = (1 << log2minipixels)-1;
+    return ((py & mask) << log2minipixels) + (px & mask);
+  }
+
   /**
    * Allow downloading based on this large a fringe of a
    * <em>maxitile</em>. The default value here is based
@@ -48,6 +48,20 @@ public interface PixelAddresser {
    */
   public int getPixel(TileBitmap data);
 
+  /**
+   * Batch version of {@link #locate(double, double)} for a run of
+   * samples, whose coordinates are {@code xs[i]}, {@code ys[i]} for
+   * {@code from <= i < to}. The last call to {@link #locate} must have
+   * been for sample {@code from}, and returned a tile.
+   * <p>
+   * Returns the number of leading samples (at least 1) that fall in that
+   * same tile, and stores their pixel indices within it in the matching
+   * positions of {@code offsets}, for {@link TileBitmap#gather}. The
+   * object stays located at the first sample.
+   */
+  public int sameTileRun(double[] xs, double[] ys, int from, int to,
+      int[] offsets);
+
   /**
    * Return a smaller number for tiles that should be downloaded first,
    * based on the size and distance to the position given by the last
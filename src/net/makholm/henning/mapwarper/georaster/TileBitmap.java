@@ -1,12 +1,21 @@
 package net.makholm.henning.mapwarper.georaster;
 
 import java.awt.image.BufferedImage;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Arrays;
 
 public class TileBitmap {
 
   public final int numPixels;
 
-  private int[] pixdata;
+  /**
+   * The pixels live either in this array or (when the RAM cache keeps
+   * them off the Java heap) in {@link #slab}. Exactly one of them is
+   * non-null.
+   */
+  private final int[] pixdata;
+  private final MemorySegment slab;
 
   public static TileBitmap of(BufferedImage img) {
     return new TileBitmap(img);
@@ -14,6 +23,7 @@ public class TileBitmap {
 
   public TileBitmap(int[] pixdata) {
     this.pixdata = pixdata;
+    this.slab = null;
     this.numPixels = pixdata.length;
   }
 
@@ -22,9 +32,24 @@ public class TileBitmap {
     int width = img.getWidth();
     this.numPixels = height * width;
     this.pixdata = new int[numPixels];
+    this.slab = null;
     img.getRGB(0, 0, width, height, pixdata, 0, width);
   }
 
+  private TileBitmap(MemorySegment slab, int numPixels) {
+    this.pixdata = null;
+    this.slab = slab;
+    this.numPixels = numPixels;
+  }
+
+  /**
+   * A bitmap that reads directly from the given segment, which must stay
+   * valid for as long as the bitmap is used.
+   */
+  public static TileBitmap inSlab(MemorySegment slab, int numPixels) {
+    return new TileBitmap(slab, numPixels);
+  }
+
   public static TileBitmap blank(int rgb) {
     return new TileBitmap(rgb);
   }
@@ -32,10 +57,54 @@ public class TileBitmap {
   private TileBitmap(int rgb) {
     this.numPixels = 1;
     this.pixdata = new int[] { rgb };
+    this.slab = null;
   }
 
   public int pixelByIndex(int i) {
-    return pixdata[i];
+    if( pixdata != null )
+      return pixdata[i];
+    else
+      return slab.getAtIndex(ValueLayout.JAVA_INT, i);
+  }
+
+  /**
+   * Set {@code out[i] = pixelByIndex(offsets[i])} for the {@code n}
+   * positions starting at {@code from}. A blank tile gives its one
+   * pixel everywhere.
+   */
+  public void gather(int[] offsets, int from, int n, int[] out) {
+    int to = from + n;
+    if( numPixels == 1 ) {
+      Arrays.fill(out, from, to, pixelByIndex(0));
+    } else if( pixdata != null ) {
+      for( int i = from; i < to; i++ )
+        out[i] = pixdata[offsets[i]];
+    } else {
+      for( int i = from; i < to; i++ )
+        out[i] = slab.getAtIndex(ValueLayout.JAVA_INT, offsets[i]);
+    }
+  }
+
+  public static long bytesFor(int numPixels) {
+    return ValueLayout.JAVA_INT.byteSize() * numPixels;
+  }
+
+  /**
+   * Copy the pixels into the given off-heap segment, which must be
+   * {@link #bytesFor(int)} bytes long, and return a bitmap that reads
+   * from there.
+   */
+  public TileBitmap copyToSlab(MemorySegment dest) {
+    if( pixdata != null )
+      MemorySegment.copy(pixdata, 0, dest, ValueLayout.JAVA_INT, 0, numPixels);
+    else
+      MemorySegment.copy(slab, 0, dest, 0, bytesFor(numPixels));
+    return new TileBitmap(dest, numPixels);
+  }
+
+  /** Returns null if the pixels are on the Java heap. */
+  public MemorySegment slab() {
+    return slab;
   }
 
 }
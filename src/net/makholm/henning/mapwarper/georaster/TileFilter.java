@@ -0,0 +1,80 @@
+package net.makholm.henning.mapwarper.georaster;
+
+/**
+ * Box-filtered versions of a square tile, for rendering projections that
+ * squeeze the map hard in one direction. Each filtered pixel is the
+ * average of a run of {@code 2^level} source pixels along one of
+ * {@link #BUCKETS} directions, centered on the pixel itself. Samples that
+ * would fall outside the tile are left out of the average rather than
+ * clamped, so the seams between tiles stay unbiased.
+ *
+ * A filter is named by a small int key combining the direction bucket and
+ * the level, suitable for indexing an array of {@link #KEYS} slots.
+ */
+public final class TileFilter {
+
+  public static final int BUCKETS = 64;
+  public static final int MAX_LEVEL = 4;
+  public static final int KEYS = BUCKETS * (MAX_LEVEL + 1);
+
+  private TileFilter() {}
+
+  /**
+   * The key for filtering along the direction (dx,dy) in tile pixel
+   * coordinates, which need not be normalized. Directions that differ by
+   * a half turn give the same filter.
+   */
+  public static int key(double dx, double dy, int level) {
+    double angle = Math.atan2(dy, dx);
+    if( angle < 0 ) angle += Math.PI;
+    int bucket = (int)(angle * (BUCKETS / Math.PI));
+    if( bucket >= BUCKETS ) bucket = 0;
+    return level * BUCKETS + bucket;
+  }
+
+  public static TileBitmap apply(TileBitmap src, int key) {
+    int size = (int)Math.sqrt(src.numPixels);
+    if( src.numPixels == 1 || size * size != src.numPixels )
+      return src;
+    int level = key / BUCKETS;
+    double angle = (key % BUCKETS + 0.5) * (Math.PI / BUCKETS);
+    double ux = Math.cos(angle);
+    double uy = Math.sin(angle);
+    int length = 1 << level;
+
+    // The offsets along the run are the same for every pixel, so round
+    // them once.
+    int[] ox = new int[length];
+    int[] oy = new int[length];
+    for( int t=0; t<length; t++ ) {
+      double along = t - (length - 1) * 0.5;
+      ox[t] = (int)Math.round(along * ux);
+      oy[t] = (int)Math.round(along * uy);
+    }
+
+    int[] result = new int[src.numPixels];
+    for( int y=0; y<size; y++ ) {
+      for( int x=0; x<size; x++ ) {
+        long sum = 0;
+        int alpha = 0, count = 0;
+        for( int t=0; t<length; t++ ) {
+          int sx = x + ox[t], sy = y + oy[t];
+          if( sx < 0 || sx >= size || sy < 0 || sy >= size ) continue;
+          int rgb = src.pixelByIndex(sy * size + sx);
+          sum += ((rgb & 0xFF0000L) << 24) + ((rgb & 0xFF00) << 12) +
+              (rgb & 0xFF);
+          alpha += rgb >>> 24;
+          count++;
+        }
+        int half = count >> 1;
+        int r = (int)(((sum >> 40) + half) / count);
+        int g = (int)((((sum >> 20) & 0xFFFFF) + half) / count);
+        int b = (int)(((sum & 0xFFFFF) + half) / count);
+        int a = (alpha + half) / count;
+        result[y * size + x] = (a << 24) | (r << 16) | (g << 8) | b;
+      }
+    }
+    return new TileBitmap(result);
+  }
+
+}
@@ -0,0 +1,235 @@
+package net.makholm.henning.mapwarper.georaster;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStreamImpl;
+
+import net.makholm.henning.mapwarper.util.NiceError;
+
+/**
+ * Decodes ordinary image files (PNG or JPEG, mostly) into tile bitmaps,
+ * with less overhead than {@code ImageIO.read} followed by
+ * {@code BufferedImage.getRGB}.
+ *
+ * Each thread gets its own decoder, which keeps a file buffer, the
+ * image readers, and a destination image around from one tile to the
+ * next, so decoding a tile needs only a single allocation of its own:
+ * the pixel array for the result.
+ */
+public final class TileImageDecoder {
+
+  private static final ThreadLocal<TileImageDecoder> perThread =
+      ThreadLocal.withInitial(TileImageDecoder::new);
+
+  public static TileImageDecoder forThisThread() {
+    return perThread.get();
+  }
+
+  private TileImageDecoder() { }
+
+  private ByteBuffer fileBuffer = ByteBuffer.allocate(64 << 10);
+  private final Map<String, ImageReader> readers = new HashMap<>();
+
+  private ImageTypeSpecifier destType;
+  private BufferedImage dest;
+
+  /**
+   * Read and decode an image file, which must have the given size.
+   */
+  public TileBitmap readFile(Path file, int width, int height)
+      throws IOException {
+    ByteBuffer buffer;
+    try( var channel = FileChannel.open(file) ) {
+      long size = channel.size();
+      if( size > Integer.MAX_VALUE / 2 )
+        throw new IOException(file+" is too large to be a tile");
+      buffer = scratchBuffer((int)size);
+      while( buffer.hasRemaining() && channel.read(buffer) >= 0 ) { }
+      buffer.flip();
+    }
+    return decode(buffer, width, height, file);
+  }
+
+  /**
+   * The buffer {@link #readFile(Path, int, int)} uses, for callers that
+   * have their own way of getting the bytes. It is cleared and has its
+   * limit set to the requested size.
+   */
+  public ByteBuffer scratchBuffer(int size) {
+    if( size > fileBuffer.capacity() )
+      fileBuffer = ByteBuffer.allocate(Integer.highestOneBit(size)*2);
+    return fileBuffer.clear().limit(size);
+  }
+
+  /**
+   * Decode an image that's already in memory, from the position to the
+   * limit of the buffer (whose own position is not changed). If the size
+   * is wrong, the error message will mention {@code what}.
+   */
+  public TileBitmap decode(ByteBuffer data, int width, int height,
+      Object what) throws IOException {
+    var stream = new BufferInputStream(data.slice());
+    ImageReader reader = readerFor(stream.buf);
+    boolean pooled = reader != null;
+    if( !pooled ) {
+      var candidates = ImageIO.getImageReaders(stream);
+      if( !candidates.hasNext() )
+        throw new IOException("Unrecognized image format in "+what);
+      reader = candidates.next();
+    }
+    try {
+      reader.setInput(stream, true, true);
+      int gotWidth = reader.getWidth(0);
+      int gotHeight = reader.getHeight(0);
+      if( gotWidth != width || gotHeight != height )
+        throw NiceError.of("Got %dx%d image for %s; expected %dx%d",
+            gotWidth, gotHeight, what, width, height);
+
+      ImageReadParam param = reader.getDefaultReadParam();
+      ImageTypeSpecifier type = reader.getImageTypes(0).next();
+      if( dest == null || !type.equals(destType) ||
+          dest.getWidth() != width || dest.getHeight() != height ) {
+        dest = type.createBufferedImage(width, height);
+        destType = type;
+      }
+      param.setDestination(dest);
+      BufferedImage img = reader.read(0, param);
+      if( img == null )
+        throw new IOException("Failed to read "+what+
+            " with no further information");
+      return new TileBitmap(argbPixels(img));
+    } finally {
+      if( pooled )
+        reader.setInput(null);
+      else
+        reader.dispose();
+    }
+  }
+
+  private static final long PNG_MAGIC = 0x89504E470D0A1A0AL;
+
+  /**
+   * Returns null for formats we don't recognize ourselves.
+   */
+  private ImageReader readerFor(ByteBuffer data) {
+    String format;
+    if( data.limit() >= 8 && data.getLong(0) == PNG_MAGIC )
+      format = "png";
+    else if( data.limit() >= 2 && data.getShort(0) == (short)0xFFD8 )
+      format = "jpeg";
+    else
+      return null;
+    return readers.computeIfAbsent(format,
+        f -> ImageIO.getImageReadersByFormatName(f).next());
+  }
+
+  // -------------------------------------------------------------------------
+
+  /**
+   * Convert to the ARGB pixels {@code getRGB} would produce, but read
+   * them directly from the data buffer for the layouts that PNG and JPEG
+   * decoding usually produce.
+   */
+  static int[] argbPixels(BufferedImage img) {
+    int width = img.getWidth();
+    int height = img.getHeight();
+    int n = width * height;
+    int[] pixels = new int[n];
+    WritableRaster raster = img.getRaster();
+    if( raster.getParent() == null &&
+        raster.getDataBuffer().getOffset() == 0 ) {
+      switch( img.getType() ) {
+      case BufferedImage.TYPE_INT_ARGB: {
+        int[] src = ((DataBufferInt)raster.getDataBuffer()).getData();
+        System.arraycopy(src, 0, pixels, 0, n);
+        return pixels;
+      }
+      case BufferedImage.TYPE_INT_RGB: {
+        int[] src = ((DataBufferInt)raster.getDataBuffer()).getData();
+        for( int i=0; i<n; i++ )
+          pixels[i] = 0xFF000000 | src[i];
+        return pixels;
+      }
+      case BufferedImage.TYPE_3BYTE_BGR: {
+        byte[] src = ((DataBufferByte)raster.getDataBuffer()).getData();
+        for( int i=0, j=0; i<n; i++, j+=3 )
+          pixels[i] = 0xFF000000 |
+          (src[j+2] & 0xFF) << 16 | (src[j+1] & 0xFF) << 8 | (src[j] & 0xFF);
+        return pixels;
+      }
+      case BufferedImage.TYPE_4BYTE_ABGR: {
+        byte[] src = ((DataBufferByte)raster.getDataBuffer()).getData();
+        for( int i=0, j=0; i<n; i++, j+=4 )
+          pixels[i] = (src[j] & 0xFF) << 24 | (src[j+3] & 0xFF) << 16 |
+          (src[j+2] & 0xFF) << 8 | (src[j+1] & 0xFF);
+        return pixels;
+      }
+      case BufferedImage.TYPE_BYTE_INDEXED: {
+        byte[] src = ((DataBufferByte)raster.getDataBuffer()).getData();
+        var icm = (IndexColorModel)img.getColorModel();
+        int[] palette = new int[256];
+        for( int i=0; i<256; i++ )
+          palette[i] = icm.getRGB(i);
+        for( int i=0; i<n; i++ )
+          pixels[i] = palette[src[i] & 0xFF];
+        return pixels;
+      }
+      default:
+        // Grayscale goes through a gamma conversion, and anything else
+        // is too unusual to bother with.
+      }
+    }
+    img.getRGB(0, 0, width, height, pixels, 0, width);
+    return pixels;
+  }
+
+  private static final class BufferInputStream extends ImageInputStreamImpl {
+    final ByteBuffer buf;
+    private final int len;
+
+    BufferInputStream(ByteBuffer buf) {
+      this.buf = buf;
+      this.len = buf.limit();
+    }
+
+    @Override
+    public long length() {
+      return len;
+    }
+
+    @Override
+    public int read() throws IOException {
+      bitOffset = 0;
+      if( streamPos < len )
+        return buf.get((int)streamPos++) & 0xFF;
+      else
+        return -1;
+    }
+
+    @Override
+    public int read(byte[] dest, int offset, int length) throws IOException {
+      bitOffset = 0;
+      if( streamPos >= len )
+        return -1;
+      length = Math.min(length, len-(int)streamPos);
+      buf.get((int)streamPos, dest, offset, length);
+      streamPos += length;
+      return length;
+    }
+  }
+
+}
@@ -0,0 +1,165 @@
+package net.makholm.henning.mapwarper.georaster;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import net.makholm.henning.mapwarper.util.NiceError;
+import net.makholm.henning.mapwarper.util.Regexer;
+
+/**
+ * Compares loading tile files with {@link TileImageDecoder} against the
+ * {@code ImageIO.read} plus {@code getRGB} it replaced, for each of the
+ * image layouts that tile servers commonly deliver. Both ways must give
+ * the same pixels.
+ *
+ * Prints tiles per second and bytes allocated per tile for each.
+ */
+public final class TileImageDecoderBenchmark {
+
+  private static final int SIZE = 256;
+
+  private double seconds = 2;
+
+  public static void run(Deque<String> words, PrintStream out) {
+    var bench = new TileImageDecoderBenchmark();
+    for( String word : words ) {
+      Regexer re = new Regexer(word);
+      if( re.match("seconds=" + Regexer.cUnsigned) )
+        bench.seconds = Double.parseDouble(re.group(1));
+      else
+        throw NiceError.of("Unrecognized decoder benchmark option '%s'",
+            word);
+    }
+    try {
+      bench.run(out);
+    } catch( IOException e ) {
+      throw NiceError.of("Decoder benchmark failed: %s", e);
+    }
+  }
+
+  private interface Loader {
+    int[] load(Path file) throws IOException;
+  }
+
+  private static int[] loadWithImageIO(Path file) throws IOException {
+    BufferedImage img = ImageIO.read(file.toFile());
+    int[] pixels = new int[SIZE * SIZE];
+    img.getRGB(0, 0, SIZE, SIZE, pixels, 0, SIZE);
+    return pixels;
+  }
+
+  private static int[] loadWithDecoder(Path file) throws IOException {
+    var bitmap = TileImageDecoder.forThisThread().readFile(file, SIZE, SIZE);
+    int[] pixels = new int[bitmap.numPixels];
+    for( int i = 0; i < pixels.length; i++ )
+      pixels[i] = bitmap.pixelByIndex(i);
+    return pixels;
+  }
+
+  private void run(PrintStream out) throws IOException {
+    Path scratch = Files.createTempDirectory("mapwarper-decoder");
+    try {
+      Path[] files = {
+          write(scratch, "png", "rgb.png", BufferedImage.TYPE_INT_RGB),
+          write(scratch, "png", "palette.png",
+              BufferedImage.TYPE_BYTE_INDEXED),
+          write(scratch, "png", "rgba.png", BufferedImage.TYPE_INT_ARGB),
+          write(scratch, "jpeg", "rgb.jpg", BufferedImage.TYPE_INT_RGB),
+      };
+      out.printf(Locale.ROOT, "%-12s %28s %28s%n", "",
+          "ImageIO.read + getRGB", "TileImageDecoder");
+      for( Path file : files ) {
+        if( !Arrays.equals(loadWithImageIO(file), loadWithDecoder(file)) )
+          throw NiceError.of("The decoder gets %s wrong!",
+              file.getFileName());
+        String before = measure(file,
+            TileImageDecoderBenchmark::loadWithImageIO, 0);
+        // Don't count the copy loadWithDecoder makes for the comparison.
+        String after = measure(file,
+            TileImageDecoderBenchmark::loadWithDecoder, 4 * (SIZE*SIZE + 4));
+        out.printf(Locale.ROOT, "%-12s %28s %28s%n",
+            file.getFileName(), before, after);
+      }
+      out.println("Both ways gave the same pixels for every file.");
+    } finally {
+      try( var paths = Files.list(scratch) ) {
+        for( Path p : (Iterable<Path>)paths::iterator )
+          Files.delete(p);
+      }
+      Files.delete(scratch);
+    }
+  }
+
+  private String measure(Path file, Loader loader, long notCounted)
+      throws IOException {
+    var threads = (com.sun.management.ThreadMXBean)
+        ManagementFactory.getThreadMXBean();
+    long tid = Thread.currentThread().threadId();
+    // Warm up the JIT before timing.
+    long warmupEnd = System.nanoTime() + (long)(Math.min(seconds, 1) * 1e9);
+    while( System.nanoTime() < warmupEnd )
+      loader.load(file);
+
+    long allocatedBefore = threads.getThreadAllocatedBytes(tid);
+    long start = System.nanoTime();
+    long deadline = start + (long)(seconds * 1e9);
+    int count = 0;
+    long now;
+    do {
+      loader.load(file);
+      count++;
+      now = System.nanoTime();
+    } while( now < deadline );
+    long allocated = threads.getThreadAllocatedBytes(tid) - allocatedBefore
+        - count * notCounted;
+    return String.format(Locale.ROOT, "%7.0f tiles/s %7.1f kB/tile",
+        count / ((now - start) / 1e9), allocated / 1024.0 / count);
+  }
+
+  /**
+   * Draw something that compresses about like a map tile: flat areas,
+   * roads, and some texture.
+   */
+  private static Path write(Path dir, String format, String name, int type)
+      throws IOException {
+    var img = new BufferedImage(SIZE, SIZE, type);
+    Graphics2D g = img.createGraphics();
+    g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+        RenderingHints.VALUE_ANTIALIAS_ON);
+    var random = new Random(name.hashCode());
+    g.setColor(new Color(0xF2EFE9));
+    g.fillRect(0, 0, SIZE, SIZE);
+    for( int i = 0; i < 12; i++ ) {
+      g.setColor(new Color(random.nextInt(0x1000000),
+          type == BufferedImage.TYPE_INT_ARGB));
+      g.fillRect(random.nextInt(SIZE), random.nextInt(SIZE),
+          20 + random.nextInt(80), 20 + random.nextInt(80));
+    }
+    g.setColor(Color.WHITE);
+    for( int i = 0; i < 8; i++ ) {
+      g.setStroke(new BasicStroke(2 + random.nextInt(8)));
+      g.drawLine(random.nextInt(SIZE), random.nextInt(SIZE),
+          random.nextInt(SIZE), random.nextInt(SIZE));
+    }
+    g.dispose();
+    Path file = dir.resolve(name);
+    if( !ImageIO.write(img, format, file.toFile()) )
+      throw NiceError.of("No ImageIO writer for %s", format);
+    return file;
+  }
+
+}
@@ -116,6 +116,24 @@ public class WebMercatorAddresser implements PixelAddresser {
     return data.pixelByIndex((yp << logTilesize) + xp);
   }
 
+  @Override
+  public int sameTileRun(double[] xs, double[] ys, int from, int to,
+      int[] offsets) {
+    int tilex = x >> shiftForTile;
+    int tiley = y >> shiftForTile;
+    int i = from;
+    for( ; i < to; i++ ) {
+      int xx = (int)(long)xs[i] & (Coords.EARTH_SIZE-1);
+      int yy = (int)(long)ys[i] & (Coords.EARTH_SIZE-1);
+      if( xx >> shiftForTile != tilex || yy >> shiftForTile != tiley )
+        break;
+      int xp = (xx >> shiftForPixel) & pixelmask;
+      int yp = (yy >> shiftForPixel) & pixelmask;
+      offsets[i] = (yp << logTilesize) + xp;
+    }
+    return Math.max(i - from, 1);
+  }
+
   @Override
   public long getDownloadPriority(long shortcode) {
     int zoom = zoom(shortcode);
@@ -443,6 +443,7 @@ public class Commands extends CommandsBase {
     view.add(Toggles.CURVATURE.command(this));
     view.add(Toggles.DARKEN_MAP.command(this));
     view.add(Toggles.SUPERSAMPLE.command(this));
+    view.add(Toggles.ADAPTIVE_SUPERSAMPLE.command(this));
 
     var tools = menu.addSubmenu("Tools");
     tools.add(straightTool);
@@ -123,6 +123,7 @@ public class Exporter extends Command {
           @Override public int columns() { return w0; }
           @Override public int rows() { return height; }
           @Override public boolean isUrgent() { return false; }
+          @Override public boolean isBatch() { return true; }
           @Override public void checkCanceled() { }
 
           boolean darken = Toggles.DARKEN_MAP.setIn(spec.flags()) &&
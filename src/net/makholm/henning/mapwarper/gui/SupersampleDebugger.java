@@ -6,8 +6,10 @@ import java.awt.Graphics2D;
 import java.awt.geom.Path2D;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.function.Function;
 
 import net.makholm.henning.mapwarper.geometry.AxisRect;
@@ -15,6 +17,7 @@ import net.makholm.henning.mapwarper.geometry.Bezier;
 import net.makholm.henning.mapwarper.geometry.Point;
 import net.makholm.henning.mapwarper.georaster.Coords;
 import net.makholm.henning.mapwarper.gui.maprender.RenderTarget;
+import net.makholm.henning.mapwarper.gui.maprender.SupersamplingRenderer;
 import net.makholm.henning.mapwarper.gui.overlays.VectorOverlay;
 import net.makholm.henning.mapwarper.gui.projection.ProjectionWorker;
 import net.makholm.henning.mapwarper.util.AbortRendering;
@@ -67,13 +70,14 @@ public class SupersampleDebugger extends Tool {
     var factory = mapView().projection.makeRenderFactory(
         mapView().dynamicMapLayerSpec);
     var worker = factory.makeWorker(target);
-    while( worker.priority() > 0 ) {
-      try {
+    try {
+      while( worker.priority() > 0 )
         worker.doSomeWork();
-      } catch (AbortRendering e) {
-        e.printStackTrace(System.out);
-        return null;
-      }
+    } catch (AbortRendering e) {
+      e.printStackTrace(System.out);
+      return null;
+    } finally {
+      worker.dispose();
     }
     target.recordPixelOutlines(translator());
     return SingleMemo.of(ProjectionWorker::projection, target::makeOverlay);
@@ -89,20 +93,33 @@ public class SupersampleDebugger extends Tool {
 
     final Map<Long, List<Point>> allSamplePoints = new HashMap<>();
     final Map<Long, Point[]> pixelOutlines = new HashMap<>();
+    /** Pixels that were rendered without supersampling after all */
+    final Set<Long> fallbackPixels = new HashSet<>();
     List<Point> recentSamplePoints;
+    boolean fellBack;
 
     @Override public long left() { return left; }
     @Override public long top() { return top; }
     @Override public int columns() { return 8; }
     @Override public int rows() { return 8; }
     @Override public boolean isUrgent() { return false; }
+    @Override public boolean isBatch() { return false; }
     @Override public void checkCanceled() { }
     @Override public void pokeSchedulerAsync() { }
 
-    public int sample(double x, double y) {
+    public void sample(double x, double y) {
       if( recentSamplePoints == null ) recentSamplePoints = new ArrayList<>();
       recentSamplePoints.add(Point.at(x,y));
-      return -1;
+    }
+
+    /**
+     * The samples taken so far for the current pixel weren't used. If
+     * it's a fallback, the pixel will be made from the next sample alone;
+     * otherwise it won't be given at all.
+     */
+    public void discardSamples(boolean fallback) {
+      recentSamplePoints = null;
+      fellBack = fallback;
     }
 
     @Override
@@ -115,7 +132,9 @@ public class SupersampleDebugger extends Tool {
       if( allSamplePoints.containsKey(coord) )
         System.out.println("Oops! Got pixel "+x+","+y+" multiple times!");
       allSamplePoints.put(coord, recentSamplePoints);
+      if( fellBack ) fallbackPixels.add(coord);
       recentSamplePoints = null;
+      fellBack = false;
     }
 
     @Override
@@ -191,7 +210,9 @@ public class SupersampleDebugger extends Tool {
         public void paint(Graphics2D g) {
           final Path2D.Double path = new Path2D.Double();
           localOutline.forEach((pos, outline) -> {
-            g.setColor(new Color(checkerColor(pos), true));
+            int samples = localSamples.get(pos).size();
+            g.setColor(new Color(fallbackPixels.contains(pos) ?
+                FALLBACK_COLOR : heatColor(samples), true));
             path.reset();
             path.moveTo(outline[0].p1.x, outline[0].p1.y);
             for( var curve : outline )
@@ -219,6 +240,20 @@ public class SupersampleDebugger extends Tool {
       };
     }
 
+    /**
+     * Pixels are filled from blue for a single sample to red for the
+     * most we'll ever take, so adaptive supersampling can be seen at work.
+     * Pixels that fell back to a single sample for lack of tiles are gray.
+     */
+    private static final int FALLBACK_COLOR = 0x90808080;
+
+    private static int heatColor(int samples) {
+      float heat = Math.min(1f, (samples - 1f) /
+          (SupersamplingRenderer.MAX_SAMPLES - 1));
+      return Color.HSBtoRGB((1 - heat) * 0.66f, 1f, 1f) & 0xFFFFFF
+          | 0x90000000;
+    }
+
     private static int checkerColor(long pos) {
       int i = (Coords.y(pos) & 3) ^ (Coords.x(pos) & 1)*2;
       return CHECKER_COLORS[i] | 0x90000000;
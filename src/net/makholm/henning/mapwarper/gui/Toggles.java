@@ -4,6 +4,8 @@ public enum Toggles {
 
   TILEGRID(true, false, "tilegrid", "Tile checkerboard pattern"),
   SUPERSAMPLE(true, false, "supersample", "Supersample warped maps"),
+  ADAPTIVE_SUPERSAMPLE(true, false, "adaptiveSupersample",
+      "Adaptive supersampling"),
   DARKEN_MAP(true, false, "darkenMap", "Darken base map"),
   CURVATURE(false, true, "showCurvature", "Show track curvature"),
   CROSSHAIRS(false, true, "showCrosshairs", "Show crosshairs"),
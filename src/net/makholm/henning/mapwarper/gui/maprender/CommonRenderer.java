@@ -13,18 +13,19 @@ import static net.makholm.henning.mapwarper.gui.maprender.FallbackChain.download
 
 import java.util.Arrays;
 import java.util.BitSet;
-import java.util.LinkedHashMap;
-import java.util.Map;
 
 import net.makholm.henning.mapwarper.geometry.Point;
 import net.makholm.henning.mapwarper.georaster.PixelAddresser;
 import net.makholm.henning.mapwarper.georaster.TileBitmap;
+import net.makholm.henning.mapwarper.georaster.TileFilter;
+import net.makholm.henning.mapwarper.georaster.WebMercatorAddresser;
 import net.makholm.henning.mapwarper.gui.SupersampleDebugger;
 import net.makholm.henning.mapwarper.rgb.RGB;
 import net.makholm.henning.mapwarper.tiles.TileSpec;
 import net.makholm.henning.mapwarper.tiles.Tileset;
 import net.makholm.henning.mapwarper.util.AbortRendering;
 import net.makholm.henning.mapwarper.util.BadError;
+import net.makholm.henning.mapwarper.util.LongHashMap;
 
 abstract class CommonRenderer implements RenderWorker {
 
@@ -108,25 +109,30 @@ abstract class CommonRenderer implements RenderWorker {
     }
     if( x > xlast ) return;
 
-    double left = target.left() * xscale;
-    do {
-      currentColumnWaitsForTiles = false;
-      currentColumn = x;
-      Arrays.fill(localCacheIndex, 0);
-
-      boolean renderResult = renderColumn(x, left + (x+0.5)*xscale,
-          0, target.rows()-1);
-      if( renderResult )
-        dirtyColumns.clear(x);
-      columnsWaitingForTiles.set(x, currentColumnWaitsForTiles);
-      target.checkCanceled();
-      x++ ;
-    } while( x <= xlast );
-
-    Arrays.fill(localCache, null);
-    for( NeededTile nt : tileDict.values() ) {
-      nt.checkedCache = false;
-      nt.midcache = null;
+    // The bitmaps we get from the cache are only good while it's pinned,
+    // so forget them all before unpinning, even if we're aborted.
+    var ramCache = mainTiles.context.ramCache;
+    long pin = ramCache.pin();
+    try {
+      double left = target.left() * xscale;
+      do {
+        currentColumnWaitsForTiles = false;
+        currentColumn = x;
+        Arrays.fill(localCacheIndex, 0);
+
+        boolean renderResult = renderColumn(x, left + (x+0.5)*xscale,
+            0, target.rows()-1);
+        if( renderResult )
+          dirtyColumns.clear(x);
+        columnsWaitingForTiles.set(x, currentColumnWaitsForTiles);
+        target.checkCanceled();
+        x++ ;
+      } while( x <= xlast );
+    } finally {
+      Arrays.fill(localCache, null);
+      forgetBitmaps(mainTileDict);
+      forgetBitmaps(fallbackTileDict);
+      ramCache.unpin(pin);
     }
 
     if( dirtyColumns.isEmpty() )
@@ -142,65 +148,35 @@ abstract class CommonRenderer implements RenderWorker {
 
   private int currentColumn;
 
+  /**
+   * Whether we may ask for tiles to be downloaded. Loading them from the
+   * disk cache happens in the background either way, except for batch
+   * targets, which load tiles themselves, and only when this is set.
+   */
   protected boolean loadTiles = false;
 
-  protected final int getPixel(Point p, long fallbackSpec) {
-    return getRawPixel(p.x, p.y, fallbackSpec, true);
+  protected final int getPixel(double x, double y, long fallbackSpec) {
+    return getRawPixel(x, y, fallbackSpec, true);
   }
 
   protected final int getRawPixel(double x, double y,
       long fallbackSpec, boolean useTransferFunction) {
     if( target instanceof SupersampleDebugger.SampleTarget st )
-      return st.sample(x,y);
+      st.sample(x,y);
     for(; fallbackSpec != 0; fallbackSpec >>= BITS_PER_ATTEMPT) {
       int aspec = (int)fallbackSpec & ATTEMPT_MASK;
       int zoom = (int)(aspec >> ZOOM_SHIFT);
       if( zoom == 0 ) continue;
 
-      PixelAddresser addresser = addressers[addresserIndex(aspec)];
-      if( addresser == null ) {
-        addresser = tilesetFor(aspec).makeAddresser(zoom, globalMidpoint);
-        if( addresser == null ) throw BadError.of("addresser was null");
-        addressers[addresserIndex(aspec)] = addresser;
-      }
-
+      PixelAddresser addresser = addresserFor(aspec, zoom);
       long shortcode = addresser.locate(x,y);
       if( shortcode == 0 ) continue;
 
-      TileBitmap bitmap;
-      int lci = cacheSetOf64(aspec, shortcode);
-      long wantTag = cacheTag(aspec, shortcode);
-      long lciTag = localCacheIndex[lci];
-      if( lciTag == wantTag || lciTag == downloadifyCacheTag(wantTag) ) {
-        bitmap = localCache[lci];
-      } else {
-        NeededTile nt = new NeededTile(tilesetFor(aspec), shortcode);
-        nt = tileDict.computeIfAbsent(nt, o->o);
-        if( nt.checkedCache ) {
-          bitmap = nt.midcache;
-        } else {
-          bitmap = nt.tileset.context.ramCache.getTile(nt, loadTiles);
-          nt.midcache = bitmap;
-          nt.checkedCache = true;
-        }
-        if( bitmap == null ) {
-          if( currentColumn > nt.xmax ) nt.xmax = currentColumn;
-          if( currentColumn < nt.xmin ) nt.xmin = currentColumn;
-          if( (aspec & DOWNLOAD_BIT) != 0 &&
-              loadTiles &&
-              !addresser.onTileEdge() ) {
-            currentColumnWaitsForTiles = true;
-            nt.requestDownload();
-          } else {
-            aspec &= ~DOWNLOAD_BIT;
-            nt.watchForDownload();
-          }
-        }
-        localCache[lci] = bitmap;
-        localCacheIndex[lci] = cacheTag(aspec, shortcode);
-      }
+      TileBitmap bitmap = tileFor(aspec, addresser, shortcode);
       if( bitmap != null ) {
         int pixel = addresser.getPixel(bitmap);
+        // A tile the server says doesn't exist; try the next fallback.
+        if( pixel == RGB.OUTSIDE_BITMAP ) continue;
         if( useTransferFunction )
           return tilesetFor(aspec).transferFunction.toARGB(pixel);
         else
@@ -210,15 +186,161 @@ abstract class CommonRenderer implements RenderWorker {
     return RGB.OUTSIDE_BITMAP;
   }
 
+  /**
+   * Lets the supersampling debugger know that the samples taken for the
+   * current pixel won't be used; see {@link
+   * SupersampleDebugger.SampleTarget#discardSamples}.
+   */
+  protected final void discardSamples(boolean fallback) {
+    if( target instanceof SupersampleDebugger.SampleTarget st )
+      st.discardSamples(fallback);
+  }
+
+  private int[] runOffsets = new int[0];
+
+  /**
+   * Like {@link #getRawPixel} without the transfer function, for the
+   * samples {@code xs[i]}, {@code ys[i]} from {@code from} up to
+   * {@code to}, putting the pixels in {@code out[i]}. Returns how many
+   * samples were done, at least 1.
+   * <p>
+   * When the first sample's tile is found at the first attempt of the
+   * chain, all the following samples in the same tile are done at once,
+   * with a single tile lookup. Otherwise it's just the first sample.
+   */
+  protected final int getRawPixels(double[] xs, double[] ys, int from, int to,
+      long fallbackSpec, int[] out) {
+    return getFilteredPixels(xs, ys, from, to, fallbackSpec, -1, out);
+  }
+
+  /**
+   * Like {@link #getRawPixels}, but a run found at the first attempt of
+   * the chain reads from the {@link TileFilter filtered} version of the
+   * tile with the given key, when there is one. A negative key means no
+   * filtering. Check {@link #canPrefilter} before asking for a filter.
+   */
+  protected final int getFilteredPixels(double[] xs, double[] ys,
+      int from, int to, long fallbackSpec, int filter, int[] out) {
+    int aspec = (int)fallbackSpec & ATTEMPT_MASK;
+    int zoom = aspec >> ZOOM_SHIFT;
+    if( zoom != 0 && !(target instanceof SupersampleDebugger.SampleTarget) ) {
+      PixelAddresser addresser = addresserFor(aspec, zoom);
+      long shortcode = addresser.locate(xs[from], ys[from]);
+      TileBitmap bitmap = shortcode == 0 ? null :
+        tileFor(aspec, addresser, shortcode);
+      if( bitmap != null ) {
+        if( filter >= 0 && bitmap.numPixels > 1 )
+          bitmap = filteredFor(aspec, shortcode, filter, bitmap);
+        if( runOffsets.length < to ) runOffsets = new int[to];
+        int n = addresser.sameTileRun(xs, ys, from, to, runOffsets);
+        bitmap.gather(runOffsets, from, n, out);
+        for( int i = from; i < from+n; i++ )
+          if( out[i] == RGB.OUTSIDE_BITMAP )
+            out[i] = getRawPixel(xs[i], ys[i], fallbackSpec, false);
+        return n;
+      }
+    }
+    out[from] = getRawPixel(xs[from], ys[from], fallbackSpec, false);
+    return 1;
+  }
+
+  /**
+   * Whether the first attempt of the chain uses tiles whose pixels are
+   * aligned with global coordinates, so {@link TileFilter} directions
+   * in global coordinates mean the same in the tile.
+   */
+  protected final boolean canPrefilter(long fallbackSpec) {
+    int aspec = (int)fallbackSpec & ATTEMPT_MASK;
+    int zoom = aspec >> ZOOM_SHIFT;
+    return zoom != 0 &&
+        addresserFor(aspec, zoom) instanceof WebMercatorAddresser;
+  }
+
+  private TileBitmap filteredFor(int aspec, long shortcode, int filter,
+      TileBitmap bitmap) {
+    var tileDict = tileDictFor(aspec);
+    NeededTile nt = tileDict.get(shortcode);
+    if( nt == null ) return bitmap;
+    if( nt.filteredKey != filter ) {
+      var filtered = nt.tileset.context.ramCache.getFiltered(nt.tileset,
+          shortcode, filter);
+      if( filtered == null ) return bitmap;
+      nt.filtered = filtered;
+      nt.filteredKey = filter;
+    }
+    return nt.filtered;
+  }
+
+  private PixelAddresser addresserFor(int aspec, int zoom) {
+    PixelAddresser addresser = addressers[addresserIndex(aspec)];
+    if( addresser == null ) {
+      addresser = tilesetFor(aspec).makeAddresser(zoom, globalMidpoint);
+      if( addresser == null ) throw BadError.of("addresser was null");
+      addressers[addresserIndex(aspec)] = addresser;
+    }
+    return addresser;
+  }
+
+  /**
+   * Find the bitmap for a tile we need, through the local cache, or
+   * arrange for it to be loaded or downloaded if we don't have it yet.
+   */
+  private TileBitmap tileFor(int aspec, PixelAddresser addresser,
+      long shortcode) {
+    TileBitmap bitmap;
+    int lci = cacheSetOf64(aspec, shortcode);
+    long wantTag = cacheTag(aspec, shortcode);
+    long lciTag = localCacheIndex[lci];
+    if( lciTag == wantTag || lciTag == downloadifyCacheTag(wantTag) )
+      return localCache[lci];
+
+    var tileDict = tileDictFor(aspec);
+    NeededTile nt = tileDict.get(shortcode);
+    if( nt == null ) {
+      nt = new NeededTile(tilesetFor(aspec), shortcode);
+      tileDict.put(shortcode, nt);
+    }
+    if( nt.checkedCache ) {
+      bitmap = nt.midcache;
+    } else {
+      var ramCache = nt.tileset.context.ramCache;
+      bitmap = target.isBatch()
+          ? ramCache.getTileForBatch(nt.tileset, shortcode, loadTiles)
+          : ramCache.getTile(nt.tileset, shortcode, false);
+      nt.midcache = bitmap;
+      nt.checkedCache = true;
+    }
+    if( bitmap == null ) {
+      if( currentColumn > nt.xmax ) nt.xmax = currentColumn;
+      if( currentColumn < nt.xmin ) nt.xmin = currentColumn;
+      if( !target.isBatch() && nt.loadState != NeededTile.NOT_ON_DISK ) {
+        // Use fallbacks until we know whether it needs downloading
+        nt.requestLoad();
+        currentColumnWaitsForTiles = true;
+      } else if( (aspec & DOWNLOAD_BIT) != 0 &&
+          loadTiles &&
+          !addresser.onTileEdge() ) {
+        currentColumnWaitsForTiles = true;
+        nt.requestDownload();
+      } else {
+        aspec &= ~DOWNLOAD_BIT;
+        nt.watchForDownload();
+      }
+    }
+    localCache[lci] = bitmap;
+    localCacheIndex[lci] = cacheTag(aspec, shortcode);
+    return bitmap;
+  }
+
   private Tileset tilesetFor(int aspec) {
     return (aspec & FALLBACK_BIT) != 0 ? fallbackTiles : mainTiles;
   }
 
-  protected final int applyTilegrid(Point pixel, int rgb) {
+  protected final int applyTilegrid(double x, double y, int rgb) {
     if( tilegrid == null )
       return rgb;
     else {
-      long gridcode = tilegrid.locate(pixel);
+      long gridcode = tilegrid.locate(x, y);
       if( gridcode == 0 )
         return rgb;
       else
@@ -229,7 +351,8 @@ abstract class CommonRenderer implements RenderWorker {
 
   @Override
   public void dispose() {
-    tileDict.values().forEach(NeededTile::cancelSubscriptions);
+    mainTileDict.values().forEach(NeededTile::cancelSubscriptions);
+    fallbackTileDict.values().forEach(NeededTile::cancelSubscriptions);
   }
 
   // -------------------------------------------------------------------------
@@ -248,7 +371,28 @@ abstract class CommonRenderer implements RenderWorker {
    */
   private final long[] localCacheIndex = new long[LCACHESIZE];
 
-  private final Map<NeededTile, NeededTile> tileDict = new LinkedHashMap<>();
+  /**
+   * Tiles we've needed so far, keyed by shortcode, for the main tileset
+   * and the fallback tileset (if it is a different one).
+   */
+  private final LongHashMap<NeededTile> mainTileDict = new LongHashMap<>();
+  private final LongHashMap<NeededTile> fallbackTileDict = new LongHashMap<>();
+
+  private LongHashMap<NeededTile> tileDictFor(int aspec) {
+    return tilesetFor(aspec) == mainTiles ? mainTileDict : fallbackTileDict;
+  }
+
+  private static void forgetBitmaps(LongHashMap<NeededTile> tileDict) {
+    for( int i = 0; i < tileDict.slots(); i++ ) {
+      if( tileDict.keyAt(i) != 0 ) {
+        NeededTile nt = tileDict.valueAt(i);
+        nt.checkedCache = false;
+        nt.midcache = null;
+        nt.filtered = null;
+        nt.filteredKey = -1;
+      }
+    }
+  }
 
   private class NeededTile extends TileSpec {
     int xmin = Integer.MAX_VALUE;
@@ -256,31 +400,71 @@ abstract class CommonRenderer implements RenderWorker {
 
     boolean checkedCache;
 
+    /** The filtered version of the tile we used in this pass, if any. */
+    TileBitmap filtered;
+    int filteredKey = -1;
+
     Runnable downloadRequested;
     Runnable downloadWatched;
     TileBitmap midcache;
 
+    static final int NOT_LOADED = 0;
+    static final int LOADING = 1;
+    static final int NOT_ON_DISK = 2;
+    volatile int loadState;
+    volatile boolean disposed;
+
     public NeededTile(Tileset tileset, long shortcode) {
       super(tileset, shortcode);
     }
 
+    /** Called in the render thread */
+    void requestLoad() {
+      if( loadState != NOT_LOADED ) return;
+      loadState = LOADING;
+      tileset.context.tileLoader.execute(this::loadInBackground);
+    }
+
+    private void loadInBackground() {
+      if( disposed ) return;
+      var bitmap = tileset.context.ramCache.getTile(this, true);
+      if( bitmap != null ) {
+        // If it gets evicted while we still need it, load it again.
+        loadState = NOT_LOADED;
+        tileArrived(bitmap);
+      } else {
+        // Go back and decide whether to download it.
+        loadState = NOT_ON_DISK;
+        renderAgain();
+      }
+    }
+
     void requestDownload() {
       if( downloadRequested == null ) {
-        downloadRequested = request(this::downloadComplete);
+        downloadRequested = request(this::tileArrived);
       }
     }
 
     void watchForDownload() {
       if( downloadWatched == null && downloadRequested == null ) {
-        downloadWatched = watch(this::downloadComplete);
+        downloadWatched = watch(this::tileArrived);
       }
     }
 
-    void downloadComplete(TileBitmap bitmap) {
-      synchronized( this ) {
-        if( midcache != null ) return;
-        midcache = bitmap;
+    void tileArrived(TileBitmap bitmap) {
+      // A bitmap off the Java heap is only good while the thread that
+      // found it has the cache pinned, so the next pass must look it up
+      // again itself.
+      if( bitmap.slab() == null ) {
+        synchronized( this ) {
+          if( midcache != null ) return;
+          midcache = bitmap;
+        }
       }
+      renderAgain();
+    }
+
+    private void renderAgain() {
       synchronized( colsToRenderNow ) {
         if( xmin < colsToRenderNow.first ) colsToRenderNow.first = xmin;
         if( xmax > colsToRenderNow.last ) colsToRenderNow.last = xmax;
@@ -289,6 +473,7 @@ abstract class CommonRenderer implements RenderWorker {
     };
 
     void cancelSubscriptions() {
+      disposed = true;
       if( downloadRequested != null )
         downloadRequested.run();
       if( downloadWatched != null )
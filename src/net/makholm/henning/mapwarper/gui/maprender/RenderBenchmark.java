@@ -0,0 +1,247 @@
+package net.makholm.henning.mapwarper.gui.maprender;
+
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.DoubleSupplier;
+
+import org.w3c.dom.Element;
+
+import net.makholm.henning.mapwarper.geometry.Point;
+import net.makholm.henning.mapwarper.georaster.PixelAddresser;
+import net.makholm.henning.mapwarper.georaster.TileBitmap;
+import net.makholm.henning.mapwarper.georaster.WebMercatorAddresser;
+import net.makholm.henning.mapwarper.gui.Toggles;
+import net.makholm.henning.mapwarper.gui.files.FSCache;
+import net.makholm.henning.mapwarper.gui.projection.OrthoProjection;
+import net.makholm.henning.mapwarper.gui.projection.Projection;
+import net.makholm.henning.mapwarper.gui.projection.TurnedProjection;
+import net.makholm.henning.mapwarper.gui.projection.WarpedProjection;
+import net.makholm.henning.mapwarper.tiles.TileContext;
+import net.makholm.henning.mapwarper.tiles.Tileset;
+import net.makholm.henning.mapwarper.util.AbortRendering;
+import net.makholm.henning.mapwarper.util.NiceError;
+import net.makholm.henning.mapwarper.util.Regexer;
+import net.makholm.henning.mapwarper.util.XmlConfig;
+
+/**
+ * Renders the same 256x256 buffer over and over from synthetic tiles
+ * that are all in the RAM cache, and reports the time, the bytes
+ * allocated and the garbage collections per render pass. The column
+ * loops shouldn't allocate anything per pixel, so once the JIT has
+ * warmed up a pass ought to allocate next to nothing.
+ *
+ * Always renders an ortho view and a turned one; a warped view along
+ * the track in a given vector file can be added.
+ */
+public final class RenderBenchmark {
+
+  private static final int SIZE = 256;
+  private static final int ZOOM = 12;
+
+  private double seconds = 2;
+  private int flags = 0;
+  private Path warpFile;
+
+  private final BenchTiles tiles;
+
+  private RenderBenchmark(TileContext ctx) {
+    this.tiles = new BenchTiles(ctx);
+  }
+
+  public static void run(TileContext ctx, Deque<String> words,
+      PrintStream out) {
+    var bench = new RenderBenchmark(ctx);
+    for( String word : words ) {
+      Regexer re = new Regexer(word);
+      if( re.match("seconds=" + Regexer.cUnsigned) )
+        bench.seconds = Double.parseDouble(re.group(1));
+      else if( re.is("supersample") )
+        bench.flags |= Toggles.SUPERSAMPLE.bit();
+      else if( re.is("tilegrid") )
+        bench.flags |= Toggles.TILEGRID.bit();
+      else if( re.match("warp=(.+)") )
+        bench.warpFile = Path.of(re.group(1));
+      else
+        throw NiceError.of("Unrecognized render benchmark option '%s'",
+            word);
+    }
+    bench.run(out);
+  }
+
+  private void run(PrintStream out) {
+    // Tiles at the target zoom come out at two screen pixels per tile
+    // pixel, so four of them cover the buffer.
+    double pixsize = 1 << (30 - ZOOM - 9);
+    Map<String, Projection> projections = new LinkedHashMap<>();
+    Map<String, Point> centers = new LinkedHashMap<>();
+    Projection ortho = OrthoProjection.ORTHO.withScaleAcross(pixsize);
+    Point somewhere = Point.at(2000.5 * (1 << 18), 1364.5 * (1 << 18));
+    projections.put("ortho", ortho);
+    centers.put("ortho", somewhere);
+    projections.put("turned", TurnedProjection.turnCounterclockwise(ortho));
+    centers.put("turned", somewhere);
+    if( warpFile != null ) {
+      FSCache fs = new FSCache();
+      WarpedProjection wp;
+      try {
+        wp = WarpedProjection.create(fs.getFile(warpFile), fs);
+      } catch( WarpedProjection.CannotWarp e ) {
+        throw NiceError.of("Cannot use %s for warping: %s",
+            warpFile, e.getMessage());
+      }
+      projections.put("warped", wp.withScaleAcross(pixsize));
+      centers.put("warped", wp.track.nodes.get(wp.track.numNodes/2));
+    }
+
+    out.printf(Locale.ROOT, "Rendering %dx%d pixels from RAM cached tiles"+
+        "%s%s, kernel %s%n", SIZE, SIZE,
+        Toggles.SUPERSAMPLE.setIn(flags) ? ", supersampled" : "",
+        Toggles.TILEGRID.setIn(flags) ? ", with tilegrid" : "",
+        SampleKernel.INSTANCE.getClass().getSimpleName());
+    for( var e : projections.entrySet() ) {
+      Projection proj = e.getValue();
+      Point local = proj.createWorker().global2local(centers.get(e.getKey()));
+      out.printf(Locale.ROOT, "%-8s %s%n", e.getKey(),
+          measure(proj, Math.round(local.x) - SIZE/2,
+              Math.round(local.y) - SIZE/2));
+    }
+  }
+
+  private String measure(Projection proj, long left, long top) {
+    var spec = new BenchSpec(proj, flags, tiles);
+    var target = new BenchTarget(left, top);
+    var renderer = (CommonRenderer)
+        proj.makeRenderFactory(spec).makeWorker(target);
+    var threads = (com.sun.management.ThreadMXBean)
+        ManagementFactory.getThreadMXBean();
+    long tid = Thread.currentThread().threadId();
+    try {
+      // The first passes load the tiles into the RAM cache.
+      while( renderer.priority() > 0 )
+        renderer.doSomeWork();
+      // Warm up the JIT before timing.
+      long warmupEnd = System.nanoTime() + (long)(Math.min(seconds, 1) * 1e9);
+      while( System.nanoTime() < warmupEnd ) {
+        renderer.markAllForRendering();
+        renderer.oneRenderPass();
+      }
+
+      long gcsBefore = gcCount(), gcTimeBefore = gcMillis();
+      long allocatedBefore = threads.getThreadAllocatedBytes(tid);
+      long start = System.nanoTime();
+      long deadline = start + (long)(seconds * 1e9);
+      int count = 0;
+      long now;
+      do {
+        renderer.markAllForRendering();
+        renderer.oneRenderPass();
+        count++;
+        now = System.nanoTime();
+      } while( now < deadline );
+      long allocated = threads.getThreadAllocatedBytes(tid) - allocatedBefore;
+      return String.format(Locale.ROOT, "%7.3f ms/pass %9.1f bytes/pass "+
+          "%4d GCs (%d ms) in %d passes",
+          (now - start) / 1e6 / count, allocated / (double)count,
+          gcCount() - gcsBefore, gcMillis() - gcTimeBefore, count);
+    } catch( AbortRendering e ) {
+      throw NiceError.of("Rendering was aborted");
+    } finally {
+      renderer.dispose();
+    }
+  }
+
+  private static long gcCount() {
+    long sum = 0;
+    for( GarbageCollectorMXBean gc :
+      ManagementFactory.getGarbageCollectorMXBeans() )
+      sum += Math.max(0, gc.getCollectionCount());
+    return sum;
+  }
+
+  private static long gcMillis() {
+    long sum = 0;
+    for( GarbageCollectorMXBean gc :
+      ManagementFactory.getGarbageCollectorMXBeans() )
+      sum += Math.max(0, gc.getCollectionTime());
+    return sum;
+  }
+
+  private record BenchSpec(Projection projection, int flags, Tileset tiles)
+  implements LayerSpec {
+    @Override public Tileset mainTiles() { return tiles; }
+    @Override public int targetZoom() { return ZOOM; }
+    @Override public Tileset fallbackTiles() { return tiles; }
+    @Override public DoubleSupplier windowDiagonal() { return () -> 1000; }
+  }
+
+  private static final class BenchTarget implements RenderTarget {
+    private final long left, top;
+    final int[] pixels = new int[SIZE * SIZE];
+
+    BenchTarget(long left, long top) {
+      this.left = left;
+      this.top = top;
+    }
+
+    @Override public long left() { return left; }
+    @Override public long top() { return top; }
+    @Override public int columns() { return SIZE; }
+    @Override public int rows() { return SIZE; }
+    @Override public boolean isUrgent() { return false; }
+    @Override public boolean isBatch() { return true; }
+    @Override public void checkCanceled() { }
+    @Override public void isNowGrownUp() { }
+    @Override public void pokeSchedulerAsync() { }
+
+    @Override
+    public void givePixel(int x, int y, int rgb) {
+      pixels[y * SIZE + x] = rgb;
+    }
+  }
+
+  /** Noise, so supersampling can't take shortcuts. */
+  private static final class BenchTiles extends Tileset {
+    BenchTiles(TileContext ctx) {
+      super(ctx, "renderbench", syntheticXml());
+    }
+
+    private static Element syntheticXml() {
+      Element elt = XmlConfig.freshElement("tileset");
+      elt.setAttribute("name", "renderbench");
+      elt.setAttribute("desc", "Synthetic tiles for benchmarking rendering");
+      return elt;
+    }
+
+    @Override
+    public PixelAddresser makeAddresser(int zoom, Point p) {
+      return new WebMercatorAddresser(zoom, 8);
+    }
+
+    @Override
+    protected TileBitmap loadTile(long tile) {
+      var random = new Random(tile);
+      int[] pixels = new int[256 * 256];
+      for( int i = 0; i < pixels.length; i++ )
+        pixels[i] = 0xFF000000 | random.nextInt(0x1000000);
+      return new TileBitmap(pixels);
+    }
+
+    @Override
+    protected void downloadTile(long tile, DownloadCallback callback) {
+      // Everything can be loaded
+    }
+
+    @Override
+    public String tilename(long tile) {
+      return "renderbench:"+tile;
+    }
+  }
+
+}
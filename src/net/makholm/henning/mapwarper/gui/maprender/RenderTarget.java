@@ -16,6 +16,13 @@ public interface RenderTarget {
    */
   boolean isUrgent();
 
+  /**
+   * This should return true for exports and other one-off renderings of
+   * a large area, whose tiles shouldn't displace those of the interactive
+   * view from the RAM cache.
+   */
+  boolean isBatch();
+
   void checkCanceled() throws AbortRendering;
 
   void givePixel(int x, int y, int rgb);
@@ -0,0 +1,61 @@
+package net.makholm.henning.mapwarper.gui.maprender;
+
+import net.makholm.henning.mapwarper.rgb.RGB;
+
+/**
+ * The arithmetic parts of supersampling a row: computing the sample
+ * coordinates from the interpolated sample lines, and adding up the
+ * pixels that were found there.
+ *
+ * If the JVM was started with {@code --add-modules jdk.incubator.vector},
+ * and the SIMD implementation from the separate {@code src-vector} source
+ * root was compiled, that is used; otherwise this plain one.
+ */
+class SampleKernel {
+
+  static final SampleKernel SCALAR = new SampleKernel();
+  static final SampleKernel INSTANCE = choose();
+
+  private static SampleKernel choose() {
+    if( ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent() ) {
+      try {
+        return (SampleKernel)Class.forName(
+            SampleKernel.class.getPackageName()+".VectorSampleKernel")
+            .getDeclaredConstructor().newInstance();
+      } catch( ClassNotFoundException e ) {
+        // Built without it; that's fine.
+      } catch( ReflectiveOperationException | LinkageError e ) {
+        System.err.println("Not using the vector API for supersampling: "+e);
+      }
+    }
+    return SCALAR;
+  }
+
+  /**
+   * Set {@code xs[j] = x0[base+j] + dx[base+j]*row} and similarly for
+   * y, for {@code from <= j < to}.
+   */
+  void sampleRow(double[] x0, double[] y0, double[] dx, double[] dy,
+      int base, int from, int to, int row, double[] xs, double[] ys) {
+    for( int j = from; j < to; j++ ) {
+      xs[j] = x0[base+j] + dx[base+j] * row;
+      ys[j] = y0[base+j] + dy[base+j] * row;
+    }
+  }
+
+  /**
+   * Add up {@code pixels[from]} up to {@code pixels[to-1]} in the
+   * split-channel format of {@link SupersamplingRenderer#splitChannels},
+   * or return -1 if any of them is {@link RGB#OUTSIDE_BITMAP}.
+   */
+  long splitSum(int[] pixels, int from, int to) {
+    long splitSum = 0;
+    for( int j = from; j < to; j++ ) {
+      int pixel = pixels[j];
+      if( pixel == RGB.OUTSIDE_BITMAP ) return -1;
+      splitSum += SupersamplingRenderer.splitChannels(pixel);
+    }
+    return splitSum;
+  }
+
+}
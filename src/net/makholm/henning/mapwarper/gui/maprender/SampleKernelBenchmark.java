@@ -0,0 +1,131 @@
+package net.makholm.henning.mapwarper.gui.maprender;
+
+import java.io.PrintStream;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.Random;
+
+import net.makholm.henning.mapwarper.util.NiceError;
+import net.makholm.henning.mapwarper.util.Regexer;
+
+/**
+ * Times the per-row arithmetic of supersampling with the plain and the
+ * vector {@link SampleKernel}, for a few typical numbers of samples per
+ * pixel, and checks that they agree. The vector kernel is only there
+ * if it was compiled from {@code src-vector} and the JVM runs with
+ * {@code --add-modules jdk.incubator.vector}.
+ */
+public final class SampleKernelBenchmark {
+
+  private static final int ROWS = 100_000;
+  private static final int LINES = 8;
+
+  private double seconds = 1;
+  private int[] sampleCounts = { 5, 16, 40 };
+
+  public static void run(Deque<String> words, PrintStream out) {
+    var bench = new SampleKernelBenchmark();
+    for( String word : words ) {
+      Regexer re = new Regexer(word);
+      if( re.match("seconds=" + Regexer.cUnsigned) )
+        bench.seconds = Double.parseDouble(re.group(1));
+      else if( re.match("samples=" + Regexer.cNat) )
+        bench.sampleCounts = new int[] { Math.max(1, re.igroup(1)) };
+      else
+        throw NiceError.of("Unrecognized kernel benchmark option '%s'",
+            word);
+    }
+    bench.run(out);
+  }
+
+  private void run(PrintStream out) {
+    SampleKernel vector = SampleKernel.INSTANCE == SampleKernel.SCALAR ?
+        null : SampleKernel.INSTANCE;
+    if( vector == null )
+      out.println("(No vector kernel to compare with. It needs src-vector "+
+          "compiled, and --add-modules jdk.incubator.vector.)");
+    out.printf(Locale.ROOT, "%7s %16s %16s%n", "samples", "plain", "vector");
+    for( int n : sampleCounts ) {
+      var rows = new Rows(n);
+      long scalarSum = rows.sumAll(SampleKernel.SCALAR);
+      double scalar = measure(rows, SampleKernel.SCALAR);
+      if( vector == null ) {
+        out.printf(Locale.ROOT, "%7d %10.1f ns/row%n", n, scalar);
+        continue;
+      }
+      if( rows.sumAll(vector) != scalarSum )
+        throw NiceError.of("The kernels disagree for %d samples!", n);
+      double simd = measure(rows, vector);
+      out.printf(Locale.ROOT, "%7d %10.1f ns/row %10.1f ns/row  (%.2fx)%n",
+          n, scalar, simd, scalar / simd);
+    }
+  }
+
+  /** Returns the best time per row over batches of {@link #ROWS}. */
+  private double measure(Rows rows, SampleKernel kernel) {
+    // Warm up the JIT before timing.
+    long warmupEnd = System.nanoTime() + (long)(Math.min(seconds, 1) * 1e9);
+    while( System.nanoTime() < warmupEnd )
+      rows.sumAll(kernel);
+
+    long best = Long.MAX_VALUE;
+    long deadline = System.nanoTime() + (long)(seconds * 1e9);
+    long now;
+    do {
+      long start = System.nanoTime();
+      rows.sumAll(kernel);
+      now = System.nanoTime();
+      best = Math.min(best, now - start);
+    } while( now < deadline );
+    return best / (double)ROWS;
+  }
+
+  /**
+   * Sample lines for a few columns and pixels to look up, like
+   * {@link SupersamplingRenderer} would have them.
+   */
+  private static final class Rows {
+    final int n;
+    final double[] x0, y0, dx, dy;
+    final double[] xs, ys;
+    final int[] initialPixels, pixels;
+
+    Rows(int n) {
+      this.n = n;
+      var random = new Random(n);
+      x0 = new double[LINES * n];
+      y0 = new double[LINES * n];
+      dx = new double[LINES * n];
+      dy = new double[LINES * n];
+      for( int i = 0; i < LINES * n; i++ ) {
+        x0[i] = random.nextDouble() * 1e8;
+        y0[i] = random.nextDouble() * 1e8;
+        dx[i] = random.nextDouble();
+        dy[i] = random.nextDouble();
+      }
+      xs = new double[n];
+      ys = new double[n];
+      initialPixels = new int[n];
+      for( int i = 0; i < n; i++ )
+        initialPixels[i] = random.nextInt() | 0xFF000000;
+      pixels = initialPixels.clone();
+    }
+
+    /**
+     * Make the pixels depend on the coordinates, so neither half of the
+     * work can be skipped.
+     */
+    long sumAll(SampleKernel kernel) {
+      long total = 0;
+      System.arraycopy(initialPixels, 0, pixels, 0, n);
+      for( int row = 0; row < ROWS; row++ ) {
+        kernel.sampleRow(x0, y0, dx, dy, (row % LINES) * n, 0, n, row,
+            xs, ys);
+        pixels[row % n] ^= (int)xs[0] & 1;
+        total += kernel.splitSum(pixels, 0, n);
+      }
+      return total;
+    }
+  }
+
+}
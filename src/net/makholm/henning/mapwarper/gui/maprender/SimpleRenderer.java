@@ -1,6 +1,5 @@
 package net.makholm.henning.mapwarper.gui.maprender;
 
-import net.makholm.henning.mapwarper.geometry.Point;
 import net.makholm.henning.mapwarper.geometry.PointWithNormal;
 import net.makholm.henning.mapwarper.rgb.RGB;
 import net.makholm.henning.mapwarper.util.AbortRendering;
@@ -46,15 +45,31 @@ public abstract class SimpleRenderer extends CommonRenderer {
   protected final boolean renderWithoutSupersampling(int col,
       PointWithNormal pwn,
       int ymin, int ymax, long fallbackChain, int dimmask) {
+    return renderLine(col, pwn.x, pwn.y, pwn.normal.x, pwn.normal.y,
+        ymin, ymax, fallbackChain, dimmask);
+  }
+
+  /**
+   * This is the innermost loop of the whole program, so it works with
+   * primitives only and allocates nothing. Keeping the column's
+   * {@link PointWithNormal} out of it also lets the JIT avoid
+   * allocating that, when {@link #locateColumn} gets inlined.
+   */
+  private boolean renderLine(int col, double x0, double y0,
+      double dx, double dy,
+      int ymin, int ymax, long fallbackChain, int dimmask) {
     dimmask &= 0x7F7F7F;
     boolean hadAllPixels = true;
     for( int y=ymin; y<=ymax; y++ ) {
-      Point p = pwn.pointOnNormal((y+0.5) * yscale);
-      int rgb = getPixel(p, fallbackChain);
-      if( rgb == RGB.OUTSIDE_BITMAP )
+      double dist = (y+0.5) * yscale;
+      double px = x0 + dist*dx;
+      double py = y0 + dist*dy;
+      int rgb = getPixel(px, py, fallbackChain);
+      if( rgb == RGB.OUTSIDE_BITMAP ) {
+        discardSamples(false);
         hadAllPixels = false;
-      else {
-        rgb = applyTilegrid(p, rgb);
+      } else {
+        rgb = applyTilegrid(px, py, rgb);
         rgb -= (rgb >> 1) & dimmask;
         target.givePixel(col, y, rgb);
       }
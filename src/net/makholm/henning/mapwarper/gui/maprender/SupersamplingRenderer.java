@@ -3,17 +3,48 @@ package net.makholm.henning.mapwarper.gui.maprender;
 import java.util.Locale;
 import java.util.Random;
 
-import net.makholm.henning.mapwarper.geometry.Point;
 import net.makholm.henning.mapwarper.geometry.PointWithNormal;
 import net.makholm.henning.mapwarper.georaster.Coords;
+import net.makholm.henning.mapwarper.georaster.TileFilter;
 import net.makholm.henning.mapwarper.gui.Toggles;
 import net.makholm.henning.mapwarper.rgb.RGB;
 import net.makholm.henning.mapwarper.util.MathUtil;
 
 public abstract class SupersamplingRenderer extends SimpleRenderer {
 
+  /** The most samples we'll take for one pixel. */
+  public static final int MAX_SAMPLES = 40;
+
+  /**
+   * In adaptive mode, take this many samples first, and then double the
+   * number for as long as the pixel still looks uneven.
+   */
+  private static final int ADAPTIVE_FIRST = 4;
+
+  /**
+   * Stop sampling when the variance of the samples so far, summed over
+   * the channels, is at most this (in squared 0-255 levels).
+   */
+  private static final int ADAPTIVE_VARIANCE = 3 * 4*4;
+
+  /**
+   * Pixels that are at least this many times longer than they are wide,
+   * and at least {@link #PREFILTER_MIN_LENGTH} tile pixels long, sample
+   * {@link TileFilter box-filtered} tiles instead of the raw ones.
+   */
+  private static final double PREFILTER_SQUEEZE = 4;
+  private static final double PREFILTER_MIN_LENGTH = 16;
+
+  /**
+   * Fewer filtered samples than this don't cover the short side of the
+   * pixel well enough, however long the filter.
+   */
+  private static final int PREFILTER_MIN_SAMPLES = 8;
+
   protected final SupersamplingRecipe supersample0;
-  private final double[] scratch;
+  private final double[] lineX0, lineY0, lineDX, lineDY;
+  private final double[] sampleX, sampleY;
+  private final int[] samplePixels;
 
   /**
    * @param source
@@ -40,8 +71,29 @@ public abstract class SupersamplingRenderer extends SimpleRenderer {
     double tilePixelsPerDisplayPixel = xscale * yscale / MathUtil.sqr(pixsize);
 
     int idealSamples = (int)(1.61 * tilePixelsPerDisplayPixel + 5);
-    int actualSamples = Math.min(idealSamples, 40);
-    return new SupersamplingRecipe(actualSamples, source, fallback);
+    int actualSamples = Math.min(idealSamples, MAX_SAMPLES);
+    boolean adaptive = Toggles.ADAPTIVE_SUPERSAMPLE.setIn(spec.flags());
+
+    // Each filtered sample stands for a run of tile pixels along the
+    // pixel's long side, a quarter of its length at most so the samples
+    // still spread over it.
+    SupersamplingRecipe prefiltered = null;
+    int sourceZoom = (int)(source & FallbackChain.ATTEMPT_MASK) >>
+        FallbackChain.ZOOM_SHIFT;
+    double length = xscale / Coords.zoom2pixsize(sourceZoom);
+    if( xscale >= PREFILTER_SQUEEZE * yscale &&
+        length >= PREFILTER_MIN_LENGTH ) {
+      int level = 1;
+      while( level < TileFilter.MAX_LEVEL && (8 << level) <= length )
+        level++;
+      int fewerSamples = Math.max(PREFILTER_MIN_SAMPLES,
+          (actualSamples + (1 << level) - 1) >> level);
+      if( fewerSamples < actualSamples )
+        prefiltered = new SupersamplingRecipe(fewerSamples, source, fallback,
+            adaptive, level, null);
+    }
+    return new SupersamplingRecipe(actualSamples, source, fallback, adaptive,
+        0, prefiltered);
 
   }
 
@@ -52,13 +104,21 @@ public abstract class SupersamplingRenderer extends SimpleRenderer {
     this.supersample0 = recipes[0];
 
     int scratchSize = 0;
+    int maxSamples = 0;
     for( var recipe : recipes ) {
       if( recipe.numSamples > 1 ) {
         this.renderPassesWanted = 3;
         scratchSize = Math.max(scratchSize, recipe.scratchLengthNeeded());
+        maxSamples = Math.max(maxSamples, recipe.numSamples);
       }
     }
-    scratch = new double[scratchSize+3];
+    lineX0 = new double[scratchSize];
+    lineY0 = new double[scratchSize];
+    lineDX = new double[scratchSize];
+    lineDY = new double[scratchSize];
+    sampleX = new double[maxSamples];
+    sampleY = new double[maxSamples];
+    samplePixels = new int[maxSamples];
   }
 
   @Override
@@ -80,58 +140,110 @@ public abstract class SupersamplingRenderer extends SimpleRenderer {
 
     long downloadlessChain = FallbackChain.neverDownload(supersample.source);
 
-    supersample.interpolate(scratch, col, pwn0, pwnM, pwn1, yscale);
+    // Exports get the full treatment; they have the time for it.
+    int filter = -1;
+    if( supersample.prefiltered != null && !target.isBatch() &&
+        canPrefilter(downloadlessChain) ) {
+      supersample = supersample.prefiltered;
+      // The long side of the pixel is across the column's normal.
+      filter = TileFilter.key(pwnM.normal.y, -pwnM.normal.x,
+          supersample.prefilterLevel);
+    }
+
+    supersample.interpolate(lineX0, lineY0, lineDX, lineDY,
+        col, pwn0, pwnM, pwn1, yscale);
     int numSamples = supersample.numSamples;
+    var kernel = SampleKernel.INSTANCE;
+
+    // With only a few samples, stopping early doesn't pay for checking.
+    int firstSamples = supersample.adaptive &&
+        numSamples > 2*ADAPTIVE_FIRST ? ADAPTIVE_FIRST : numSamples;
 
     boolean hadAllPixels = true;
-    int patternStartIndex = ((ymin-1)&7) * numSamples * 4;
-    rowloop: for( int row = ymin; row <= ymax; row++ ) {
-      if( (row&7) == 0 )
-        patternStartIndex = 0;
-      else
-        patternStartIndex += numSamples * 4;
-      var patternEndIndex = patternStartIndex + numSamples * 4;
-
-      if( patternStartIndex < 0 && patternEndIndex+3 >= scratch.length )
-        throw new ArrayIndexOutOfBoundsException();
+    for( int row = ymin; row <= ymax; row++ ) {
+      int base = (row&7) * numSamples;
+      int n = 0;
       long splitSum = 0;
-      for( int i = patternStartIndex; i<patternEndIndex; i+=4 ) {
-        double sx = scratch[i+0] + scratch[i+2] * row;
-        double sy = scratch[i+1] + scratch[i+3] * row;
-        int pixel = getRawPixel(sx, sy, downloadlessChain, false);
-        if( pixel != RGB.OUTSIDE_BITMAP ) {
-          splitSum += splitChannels(pixel);
+      long squares = 0;
+      for( int more = firstSamples; more > 0; ) {
+        int from = n;
+        n += more;
+        kernel.sampleRow(lineX0, lineY0, lineDX, lineDY,
+            base, from, n, row, sampleX, sampleY);
+        for( int j = from; j < n; )
+          j += getFilteredPixels(sampleX, sampleY, j, n,
+              downloadlessChain, filter, samplePixels);
+        long sum = kernel.splitSum(samplePixels, from, n);
+        if( sum < 0 ) {
+          splitSum = -1;
+          break;
+        }
+        splitSum += sum;
+        if( n == numSamples ) break;
+        squares += sumOfSquares(samplePixels, from, n);
+        if( isEvenEnough(n, splitSum, squares) ) break;
+        more = Math.min(n, numSamples - n);
+      }
+      if( splitSum < 0 ) {
+        // The fallback to no supersampling is also the place where we
+        // request _download_ of the supersampling layers -- since that
+        // happens at the official mid-pixel coordinates so we don't
+        // risk downloading something outside the margins.
+        double dist = (row+0.5) * yscale;
+        double px = pwnM.x + dist*pwnM.normal.x;
+        double py = pwnM.y + dist*pwnM.normal.y;
+        discardSamples(true);
+        int rgb = getPixel(px, py, supersample.source | supersample.fallback);
+        if( rgb == RGB.OUTSIDE_BITMAP ) {
+          discardSamples(false);
+          hadAllPixels = false;
         } else {
-          // The fallback to no supersampling is also the place where we
-          // request _download_ of the supersampling layers -- since that
-          // happens at the official mid-pixel coordinates so we don't
-          // risk downloading something outside the margins.
-          Point p = pwnM.pointOnNormal((row+0.5) * yscale);
-          int rgb = getPixel(p, supersample.source | supersample.fallback);
-          if( rgb == RGB.OUTSIDE_BITMAP )
-            hadAllPixels = false;
-          else {
-            rgb = applyTilegrid(p, rgb);
-            target.givePixel(col, row, rgb);
-          }
-          continue rowloop;
+          rgb = applyTilegrid(px, py, rgb);
+          target.givePixel(col, row, rgb);
         }
+        continue;
       }
-      int pixel = combineChannels(splitSum, supersample.oversampleScaler);
+      int pixel = combineChannels(splitSum, n == numSamples ?
+          supersample.oversampleScaler : makeScaler(n));
       int rgb = mainTiles.transferFunction.toARGB(pixel);
       if( tilegrid != null ) {
-        Point mid = pwnM.pointOnNormal((row+0.5)*yscale);
-        rgb = applyTilegrid(mid, rgb);
+        double dist = (row+0.5) * yscale;
+        rgb = applyTilegrid(pwnM.x + dist*pwnM.normal.x,
+            pwnM.y + dist*pwnM.normal.y, rgb);
       }
       target.givePixel(col, row, rgb);
     }
     return hadAllPixels;
   }
 
+  private static long sumOfSquares(int[] pixels, int from, int to) {
+    long sum = 0;
+    for( int j = from; j < to; j++ ) {
+      int r = (pixels[j] >> 16) & 0xFF;
+      int g = (pixels[j] >> 8) & 0xFF;
+      int b = pixels[j] & 0xFF;
+      sum += r*r + g*g + b*b;
+    }
+    return sum;
+  }
+
+  /**
+   * Whether the variance of n samples, summed over the color channels,
+   * is small enough to stop. This is computed from the running sums
+   * without division: n² times the variance is n·Σx² − (Σx)².
+   */
+  private static boolean isEvenEnough(int n, long splitSum, long squares) {
+    long r = (char)(splitSum >>> 16);
+    long g = (char)(splitSum >>> 32);
+    long b = (char)splitSum;
+    return n * squares - (r*r + g*g + b*b) <= (long)ADAPTIVE_VARIANCE * n * n;
+  }
+
   // These two functions cleverly (?) facilitate averaging 4 channels in one
-  // using 64-bit integer arithmetic and bit fiddling instead of SIMD:
+  // using 64-bit integer arithmetic and bit fiddling instead of SIMD.
+  // (See VectorSampleKernel for when we do have SIMD.)
 
-  private static long splitChannels(int pixel) {
+  static long splitChannels(int pixel) {
     // Transform ABCD to 0A0C0B0D
     return (pixel & 0x00FF00FFL) + ((pixel & 0xFF00FF00L) << 24);
   }
@@ -176,8 +288,21 @@ public abstract class SupersamplingRenderer extends SimpleRenderer {
     final int numSamples;
     final float[][] multipliers;
     final int oversampleScaler;
+    final boolean adaptive;
+
+    /** If nonzero, the {@link TileFilter} level to sample with. */
+    final int prefilterLevel;
+
+    /**
+     * A recipe with fewer samples from {@link TileFilter filtered} tiles,
+     * to use instead of this one where we can; or null.
+     */
+    final SupersamplingRecipe prefiltered;
 
     SupersamplingRecipe(long source, long fallback) {
+      this.adaptive = false;
+      this.prefilterLevel = 0;
+      this.prefiltered = null;
       this.numSamples = 1;
       this.source = source;
       this.fallback = fallback;
@@ -185,7 +310,17 @@ public abstract class SupersamplingRenderer extends SimpleRenderer {
       this.oversampleScaler = 0;
     }
 
-    SupersamplingRecipe(int numSamples, long source, long fallback) {
+    SupersamplingRecipe(int numSamples, long source, long fallback,
+        boolean adaptive) {
+      this(numSamples, source, fallback, adaptive, 0, null);
+    }
+
+    SupersamplingRecipe(int numSamples, long source, long fallback,
+        boolean adaptive, int prefilterLevel,
+        SupersamplingRecipe prefiltered) {
+      this.adaptive = adaptive;
+      this.prefilterLevel = prefilterLevel;
+      this.prefiltered = prefiltered;
       this.numSamples = numSamples;
       this.source = source;
       this.fallback = fallback;
@@ -209,11 +344,43 @@ public abstract class SupersamplingRenderer extends SimpleRenderer {
         }
       }
 
+      // Within each pixel, order the samples such that every prefix of
+      // them is spread over the whole pixel, because adaptive sampling may
+      // stop early. The order makes no difference to the full average.
+      int[] order = progressiveOrder(numSamples);
+      for( var colMultipliers : multipliers ) {
+        float[] leftToRight = colMultipliers.clone();
+        for( int row = 0; row < 8; row++ ) {
+          for( int k = 0; k < numSamples; k++ ) {
+            int from = 2 * (row * numSamples + order[k]);
+            int to = 2 * (row * numSamples + k);
+            colMultipliers[to + 0] = leftToRight[from + 0];
+            colMultipliers[to + 1] = leftToRight[from + 1];
+          }
+        }
+      }
+
       oversampleScaler = makeScaler(numSamples);
     }
 
+    /**
+     * The numbers below n in bit-reversed order, which visits every
+     * half, quarter, eighth, ... of the range before going back to one
+     * it has already been to.
+     */
+    private static int[] progressiveOrder(int n) {
+      int[] order = new int[n];
+      int bits = 32 - Integer.numberOfLeadingZeros(n - 1);
+      int k = 0;
+      for( int i = 0; k < n; i++ ) {
+        int j = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        if( j < n ) order[k++] = j;
+      }
+      return order;
+    }
+
     public int scratchLengthNeeded() {
-      return 4 * 8 * numSamples;
+      return 8 * numSamples;
     }
 
     /**
@@ -221,10 +388,12 @@ public abstract class SupersamplingRenderer extends SimpleRenderer {
      * ones (for the left, center, and right side of a pixel column) to produce
      * 8 sets of numSamples sample points.
      *
-     * The output is delivered in the {@link scratch} array, in a sequence
-     * of quadruples (xBase, yBase, dx, dy).
+     * The output is delivered as the base point and step of each line, in
+     * four parallel arrays, so the sample points for a row can be computed
+     * in bulk.
      */
-    void interpolate(double[] scratch, int column,
+    void interpolate(double[] x0, double[] y0, double[] dx0, double[] dy0,
+        int column,
         PointWithNormal pwn0, PointWithNormal pwnM, PointWithNormal pwn1,
         double yscale) {
       var colMultipliers = this.multipliers[column%8];
@@ -240,10 +409,10 @@ public abstract class SupersamplingRenderer extends SimpleRenderer {
         var dy = c0*n0.y + cM*nM.y + c1*n1.y;
         var x = c0*pwn0.x + cM*pwnM.x + c1*pwn1.x + u*dx;
         var y = c0*pwn0.y + cM*pwnM.y + c1*pwn1.y + u*dy;
-        scratch[4*i+0] = x;
-        scratch[4*i+1] = y;
-        scratch[4*i+2] = dx;
-        scratch[4*i+3] = dy;
+        x0[i] = x;
+        y0[i] = y;
+        dx0[i] = dx;
+        dy0[i] = dy;
       }
     }
   }
@@ -201,6 +201,7 @@ public final class TurnedProjection extends Projection {
     @Override public int columns() { return outer.rows(); }
     @Override public int rows() { return outer.columns(); }
     @Override public boolean isUrgent() { return outer.isUrgent(); }
+    @Override public boolean isBatch() { return outer.isBatch(); }
     @Override public void isNowGrownUp() { outer.isNowGrownUp(); }
     @Override public void pokeSchedulerAsync() { outer.pokeSchedulerAsync(); }
 
@@ -230,6 +231,7 @@ public final class TurnedProjection extends Projection {
     @Override public int columns() { return outer.columns(); }
     @Override public int rows() { return outer.rows(); }
     @Override public boolean isUrgent() { return outer.isUrgent(); }
+    @Override public boolean isBatch() { return outer.isBatch(); }
     @Override public void isNowGrownUp() { outer.isNowGrownUp(); }
     @Override public void pokeSchedulerAsync() { outer.pokeSchedulerAsync(); }
 
@@ -258,6 +260,7 @@ public final class TurnedProjection extends Projection {
     @Override public int columns() { return outer.rows(); }
     @Override public int rows() { return outer.columns(); }
     @Override public boolean isUrgent() { return outer.isUrgent(); }
+    @Override public boolean isBatch() { return outer.isBatch(); }
     @Override public void isNowGrownUp() { outer.isNowGrownUp(); }
     @Override public void pokeSchedulerAsync() { outer.pokeSchedulerAsync(); }
 
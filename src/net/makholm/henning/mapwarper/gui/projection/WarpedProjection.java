@@ -6,6 +6,7 @@ import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Objects;
 import java.util.Set;
+import java.util.function.Consumer;
 
 import net.makholm.henning.mapwarper.geometry.AxisRect;
 import net.makholm.henning.mapwarper.geometry.Bezier;
@@ -300,6 +301,29 @@ public final class WarpedProjection extends BaseProjection {
     return new AxisRect(Point.at(xmin, ymin), Point.at(xmax, ymax));
   }
 
+  /**
+   * Produce global points that cover everything within the margins of
+   * the warp, spaced at most about {@code step} apart both along and
+   * across the track (somewhat more on the outside of sharp curves).
+   */
+  public void sweepMargins(double step, Consumer<Point> sink) {
+    WarpMargins m = WarpMargins.get(this);
+    MinimalWarpWorker w = new MinimalWarpWorker(this);
+    var mw = m.new Worker(w, 0, 1);
+    for( double t = 0; ; t = Math.min(t+step, totalLength) ) {
+      mw.setLefting(t);
+      double left = mw.findLeft();
+      double right = mw.findRight();
+      double slew = curves.segmentSlew(w.segment);
+      PointWithNormal pwn = w.normalAt(t);
+      for( double d = left-slew; ; d = Math.min(d+step, right-slew) ) {
+        sink.accept(pwn.pointOnNormal(d));
+        if( d >= right-slew ) break;
+      }
+      if( t >= totalLength ) break;
+    }
+  }
+
 
   @Override
   protected long longHashImpl() {
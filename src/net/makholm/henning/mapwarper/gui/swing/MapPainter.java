@@ -396,6 +396,11 @@ class MapPainter {
       return buffer.isYoung;
     }
 
+    @Override
+    public boolean isBatch() {
+      return false;
+    }
+
     int priority() {
       return worker == null ? 1000 : worker.priority();
     }
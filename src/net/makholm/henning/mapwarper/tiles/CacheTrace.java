@@ -0,0 +1,197 @@
+package net.makholm.henning.mapwarper.tiles;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * A record of the tile lookups made through the {@link TileCache}, and a
+ * way to replay it against simulated caches of various sizes, to see how
+ * different eviction policies would have fared.
+ *
+ * The trace is a text file with a line per lookup, giving the tileset,
+ * the shortcode, the number of bytes the entry takes up in the cache,
+ * and how many nanoseconds it took to load the tile last time. New
+ * lookups are appended to an existing trace file.
+ */
+public final class CacheTrace {
+
+  private final BufferedWriter out;
+
+  CacheTrace(Path file) throws IOException {
+    // Append, so traces from several sessions add up (and replaying a
+    // trace with tracing still switched on doesn't destroy it).
+    out = Files.newBufferedWriter(file, StandardOpenOption.CREATE,
+        StandardOpenOption.APPEND);
+    Runtime.getRuntime().addShutdownHook(new Thread(this::flush));
+  }
+
+  synchronized void record(Tileset tileset, long shortcode,
+      long bytes, long loadNanos) {
+    try {
+      out.write(tileset.name+" "+Long.toHexString(shortcode)+" "+
+          bytes+" "+loadNanos+"\n");
+    } catch( IOException e ) {
+      // Not worth stopping for
+    }
+  }
+
+  synchronized void flush() {
+    try {
+      out.flush();
+    } catch( IOException e ) {
+      e.printStackTrace();
+    }
+  }
+
+  // -------------------------------------------------------------------------
+
+  private record Access(String key, long bytes, long loadNanos) { }
+
+  /**
+   * Replay a recorded trace against each of the capacities, reporting
+   * hit ratios and the total time spent reloading tiles, for plain LRU
+   * and for the cost-aware policy the cache now uses.
+   */
+  public static void replay(Path file, long[] capacities, PrintStream report)
+      throws IOException {
+    List<Access> trace = new ArrayList<>();
+    try( BufferedReader in = Files.newBufferedReader(file) ) {
+      for( String line; (line = in.readLine()) != null; ) {
+        String[] words = line.split(" ");
+        if( words.length != 4 ) continue;
+        trace.add(new Access(words[0]+" "+words[1],
+            Long.parseLong(words[2]), Long.parseLong(words[3])));
+      }
+    }
+    report.println(trace.size()+" lookups in "+file);
+    for( long capacity : capacities ) {
+      report.printf("  %5d MB: LRU %s%n", capacity >> 20,
+          new Lru(capacity).run(trace));
+      report.printf("  %5d MB: GreedyDual %s%n", capacity >> 20,
+          new GreedyDual(capacity).run(trace));
+    }
+  }
+
+  private abstract static class Simulation {
+    final long capacity;
+    long used;
+    int hits;
+    long reloadNanos;
+
+    Simulation(long capacity) {
+      this.capacity = capacity;
+    }
+
+    abstract boolean touch(Access a);
+    abstract void insert(Access a);
+    abstract void evictOne();
+
+    String run(List<Access> trace) {
+      for( Access a : trace ) {
+        if( touch(a) ) {
+          hits++;
+        } else {
+          reloadNanos += a.loadNanos;
+          insert(a);
+          used += a.bytes;
+          while( used > capacity )
+            evictOne();
+        }
+      }
+      return String.format("hit ratio %.2f%%, %.1f s spent loading",
+          100.0 * hits / Math.max(1, trace.size()), reloadNanos / 1e9);
+    }
+  }
+
+  private static final class Lru extends Simulation {
+    final LinkedHashMap<String, Access> map =
+        new LinkedHashMap<>(16, 0.75f, true);
+
+    Lru(long capacity) {
+      super(capacity);
+    }
+
+    @Override
+    boolean touch(Access a) {
+      return map.get(a.key) != null;
+    }
+
+    @Override
+    void insert(Access a) {
+      map.put(a.key, a);
+    }
+
+    @Override
+    void evictOne() {
+      Iterator<Access> it = map.values().iterator();
+      used -= it.next().bytes;
+      it.remove();
+    }
+  }
+
+  private static final class GreedyDual extends Simulation {
+    private static final class Item {
+      final Access access;
+      int version;
+      Item(Access access) { this.access = access; }
+    }
+
+    /** Stale heap entries are skipped when they reach the top. */
+    private record Queued(double priority, Item item, int version) { }
+
+    final Map<String, Item> map = new HashMap<>();
+    final PriorityQueue<Queued> heap = new PriorityQueue<>(
+        (a,b) -> Double.compare(a.priority, b.priority));
+    double inflation;
+
+    GreedyDual(long capacity) {
+      super(capacity);
+    }
+
+    private void enqueue(Item item) {
+      double priority = TileCache.evictionPriority(inflation,
+          item.access.loadNanos, item.access.bytes);
+      heap.add(new Queued(priority, item, ++item.version));
+    }
+
+    @Override
+    boolean touch(Access a) {
+      Item item = map.get(a.key);
+      if( item == null ) return false;
+      enqueue(item);
+      return true;
+    }
+
+    @Override
+    void insert(Access a) {
+      Item item = new Item(a);
+      map.put(a.key, item);
+      enqueue(item);
+    }
+
+    @Override
+    void evictOne() {
+      for(;;) {
+        Queued q = heap.poll();
+        if( q.version != q.item.version ) continue;
+        map.remove(q.item.access.key);
+        used -= q.item.access.bytes;
+        inflation = Math.max(inflation, q.priority);
+        return;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,102 @@
+package net.makholm.henning.mapwarper.tiles;
+
+/**
+ * Pauses all downloads for a tileset when most of its recent download
+ * attempts have failed, on the theory that the server is having a bad
+ * time and hammering it won't help.
+ *
+ * While the breaker is open nothing is downloaded. When the pause is
+ * over, a single trial download is let through: if it succeeds the
+ * breaker closes again, and if not, the next pause is twice as long.
+ *
+ * Not thread safe; belongs to the lock on the {@link TileDownloader}.
+ */
+final class CircuitBreaker {
+
+  private static final int WINDOW = 20;
+  private static final int MIN_SAMPLES = 10;
+  private static final double TRIP_RATE = 0.5;
+  private static final long FIRST_PAUSE_SECONDS = 30;
+  private static final long MAX_PAUSE_SECONDS = 1800;
+
+  /** The most recent outcomes, true meaning failure. */
+  private final boolean[] window = new boolean[WINDOW];
+  private int samples, next, failures;
+
+  /** System.nanoTime() when the pause ends; meaningless if closed. */
+  private long openUntil;
+  private boolean open, trialInFlight;
+  private long pauseSeconds = FIRST_PAUSE_SECONDS;
+
+  int trips;
+
+  /**
+   * Returns 0 if a download may start now, or else how many nanoseconds
+   * to wait before asking again. {@link Long#MAX_VALUE} means to wait
+   * for the outcome of the trial download.
+   */
+  long delayBeforeNext(long now) {
+    if( !open ) return 0;
+    if( openUntil - now > 0 ) return openUntil - now;
+    return trialInFlight ? Long.MAX_VALUE : 0;
+  }
+
+  /**
+   * Called when a download starts. Returns true if it is the trial
+   * download that decides whether the breaker should close again.
+   */
+  boolean starting() {
+    if( !open ) return false;
+    trialInFlight = true;
+    return true;
+  }
+
+  /** Called if the trial download turned out not to be needed. */
+  void abandonTrial() {
+    trialInFlight = false;
+  }
+
+  /**
+   * Returns true if the state changed, such that workers waiting for
+   * the breaker should take another look.
+   */
+  boolean record(boolean failed, boolean wasTrial, long now) {
+    if( open ) {
+      // Stragglers that started before we tripped don't count.
+      if( !wasTrial ) return false;
+      trialInFlight = false;
+      if( failed ) {
+        pauseSeconds = Math.min(MAX_PAUSE_SECONDS, pauseSeconds * 2);
+        openUntil = now + pauseSeconds * 1_000_000_000L;
+      } else {
+        open = false;
+        pauseSeconds = FIRST_PAUSE_SECONDS;
+        samples = next = failures = 0;
+      }
+      return true;
+    }
+    if( samples == WINDOW ) {
+      if( window[next] ) failures--;
+    } else {
+      samples++;
+    }
+    window[next] = failed;
+    if( failed ) failures++;
+    next = (next + 1) % WINDOW;
+    if( samples >= MIN_SAMPLES && failures >= samples * TRIP_RATE ) {
+      open = true;
+      openUntil = now + pauseSeconds * 1_000_000_000L;
+      trips++;
+      return true;
+    }
+    return false;
+  }
+
+  String state(long now) {
+    if( !open ) return "closed";
+    if( openUntil - now > 0 )
+      return "open for "+((openUntil - now) / 1_000_000_000L + 1)+" s";
+    return "half-open";
+  }
+
+}
@@ -3,6 +3,7 @@ package net.makholm.henning.mapwarper.tiles;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Locale;
+import java.util.regex.Pattern;
 
 import org.w3c.dom.Element;
 
@@ -11,6 +12,7 @@ import net.makholm.henning.mapwarper.georaster.PixelAddresser;
 import net.makholm.henning.mapwarper.georaster.TileBitmap;
 import net.makholm.henning.mapwarper.georaster.WebMercatorAddresser;
 import net.makholm.henning.mapwarper.util.NiceError;
+import net.makholm.henning.mapwarper.util.Regexer;
 
 public class CommonWebTileset extends HttpTileset {
 
@@ -82,6 +84,38 @@ public class CommonWebTileset extends HttpTileset {
             tilex%100, tiley%100, extension));
   }
 
+  @Override
+  protected long tileForFile(Path relative) {
+    var re = new Regexer(relative.toString().replace('\\', '/'));
+    if( !re.match("(\\d+)/(\\d+),(\\d+)/(\\d\\d),(\\d\\d)" +
+        Pattern.quote(extension)) )
+      return 0;
+    long tile = WebMercatorAddresser.makeShortcode(re.igroup(1),
+        re.igroup(2)*100 + re.igroup(4), re.igroup(3)*100 + re.igroup(5));
+    return fileForTile(tile).equals(cacheRoot.resolve(relative)) ? tile : 0;
+  }
+
+  @Override
+  protected boolean canIndexDisk() {
+    return true;
+  }
+
+  /**
+   * In packed storage, each pack holds a 256×256 square of tiles.
+   */
+  @Override
+  protected Path packForTile(long tile) {
+    return Path.of(Integer.toString(WebMercatorAddresser.zoom(tile)),
+        (WebMercatorAddresser.tilex(tile) >> 8) + "," +
+        (WebMercatorAddresser.tiley(tile) >> 8));
+  }
+
+  @Override
+  protected int slotInPack(long tile) {
+    return (WebMercatorAddresser.tilex(tile) & 0xFF) << 8 |
+        (WebMercatorAddresser.tiley(tile) & 0xFF);
+  }
+
   protected String tileUrl(int zoom, int tilex, int tiley) {
     int i = urlTemplate.indexOf('*');
     if( i >= 0 ) {
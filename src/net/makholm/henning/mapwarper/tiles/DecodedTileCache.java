@@ -0,0 +1,198 @@
+package net.makholm.henning.mapwarper.tiles;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.makholm.henning.mapwarper.georaster.TileBitmap;
+
+/**
+ * A second level behind the {@link TileCache}: tiles it evicts are kept
+ * here, already decoded, in slabs of memory-mapped files. Getting a tile
+ * back from here is a plain copy, which is a lot cheaper than decoding
+ * the PNG or JPEG again.
+ *
+ * The files are scratch space for this process only. They're deleted as
+ * soon as they're mapped (where the OS allows it), so nothing is left
+ * behind, not even after a crash.
+ *
+ * Tiles are evicted from here in least-recently-used order. A tile is
+ * pinned while it is being copied in or out, so its slot can't be
+ * reused under the feet of the copying thread.
+ */
+final class DecodedTileCache {
+
+  private static final long CHUNK_BYTES = 64L << 20;
+
+  private final long maxBytes;
+  private final Path dir;
+  private final Arena arena = Arena.ofShared();
+
+  private final Map<Integer, SizeClass> sizeClasses = new LinkedHashMap<>();
+  private final LinkedHashMap<Key, Slot> entries =
+      new LinkedHashMap<>(16, 0.75f, true);
+  private long usedBytes;
+  private int chunkCounter;
+  private boolean failed;
+
+  DecodedTileCache(long maxBytes, Path dir) {
+    this.maxBytes = maxBytes;
+    this.dir = dir;
+  }
+
+  private record Key(Tileset tileset, long shortcode) { }
+
+  private static final class Slot {
+    final SizeClass sizeClass;
+    final MemorySegment segment;
+    int pins;
+    boolean dead;
+
+    Slot(SizeClass sizeClass, MemorySegment segment) {
+      this.sizeClass = sizeClass;
+      this.segment = segment;
+    }
+  }
+
+  private final class SizeClass {
+    final int numPixels;
+    final long bytes;
+    final ArrayDeque<MemorySegment> free = new ArrayDeque<>();
+
+    SizeClass(int numPixels) {
+      this.numPixels = numPixels;
+      this.bytes = TileBitmap.bytesFor(numPixels);
+    }
+
+    /** Called with the lock held */
+    MemorySegment take() throws IOException {
+      if( free.isEmpty() ) {
+        long slots = Math.max(1, CHUNK_BYTES / bytes);
+        Files.createDirectories(dir);
+        Path file = dir.resolve("slab"+(++chunkCounter)+"-"+numPixels);
+        try( var ch = FileChannel.open(file, CREATE, READ, WRITE,
+            TRUNCATE_EXISTING) ) {
+          var chunk = ch.map(MapMode.READ_WRITE, 0, slots * bytes, arena);
+          for( long i=0; i<slots; i++ )
+            free.add(chunk.asSlice(i * bytes, bytes));
+        } finally {
+          try {
+            Files.delete(file);
+          } catch( IOException e ) {
+            file.toFile().deleteOnExit();
+          }
+        }
+      }
+      return free.removeFirst();
+    }
+  }
+
+  /**
+   * Returns null if we don't have the tile. Otherwise the pixels are
+   * copied into a fresh bitmap -- off the Java heap if {@code slabs} is
+   * non-null.
+   */
+  TileBitmap get(Tileset tileset, long shortcode, PixelSlabs slabs) {
+    Slot s;
+    synchronized( this ) {
+      s = entries.get(new Key(tileset, shortcode));
+      if( s == null ) return null;
+      s.pins++;
+    }
+    try {
+      if( slabs != null ) {
+        var dest = slabs.allocate(s.sizeClass.bytes);
+        return TileBitmap.inSlab(s.segment, s.sizeClass.numPixels)
+            .copyToSlab(dest);
+      } else {
+        return new TileBitmap(s.segment.toArray(ValueLayout.JAVA_INT));
+      }
+    } finally {
+      unpin(s);
+    }
+  }
+
+  void put(Tileset tileset, long shortcode, TileBitmap bitmap) {
+    if( bitmap.numPixels <= 1 ) return;
+    Key key = new Key(tileset, shortcode);
+    Slot s;
+    synchronized( this ) {
+      if( failed || entries.containsKey(key) ) return;
+      var sizeClass = sizeClasses.computeIfAbsent(bitmap.numPixels,
+          SizeClass::new);
+      makeRoom(sizeClass.bytes);
+      try {
+        s = new Slot(sizeClass, sizeClass.take());
+      } catch( IOException e ) {
+        System.err.println("Cannot extend decoded tile cache in "+dir+
+            "; giving up on it: "+e);
+        failed = true;
+        return;
+      }
+      s.pins = 1;
+      usedBytes += sizeClass.bytes;
+    }
+    bitmap.copyToSlab(s.segment);
+    synchronized( this ) {
+      entries.put(key, s);
+    }
+    unpin(s);
+  }
+
+  synchronized void remove(Tileset tileset, long shortcode) {
+    Slot s = entries.remove(new Key(tileset, shortcode));
+    if( s != null )
+      kill(s);
+  }
+
+  synchronized void clear() {
+    for( var s : entries.values() )
+      kill(s);
+    entries.clear();
+  }
+
+  /** Called with the lock held */
+  private void makeRoom(long bytes) {
+    Iterator<Slot> it = entries.values().iterator();
+    while( usedBytes + bytes > maxBytes && it.hasNext() ) {
+      Slot s = it.next();
+      if( s.pins == 0 ) {
+        it.remove();
+        kill(s);
+      }
+    }
+  }
+
+  /** Called with the lock held */
+  private void kill(Slot s) {
+    s.dead = true;
+    if( s.pins == 0 )
+      free(s);
+  }
+
+  private synchronized void unpin(Slot s) {
+    if( --s.pins == 0 && s.dead )
+      free(s);
+  }
+
+  /** Called with the lock held */
+  private void free(Slot s) {
+    usedBytes -= s.sizeClass.bytes;
+    s.sizeClass.free.addFirst(s.segment);
+  }
+
+}
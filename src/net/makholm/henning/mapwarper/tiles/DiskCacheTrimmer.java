@@ -0,0 +1,160 @@
+package net.makholm.henning.mapwarper.tiles;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import net.makholm.henning.mapwarper.util.BackgroundThread;
+import net.makholm.henning.mapwarper.util.XmlConfig;
+
+/**
+ * Keeps the disk caches within their quotas by deleting the tiles that
+ * have gone longest without being used. There can be a quota for each
+ * tileset, as well as one for all of them together.
+ *
+ * When a tile was last used is tracked by the tilesets themselves (see
+ * {@link DiskCachedTileset#scanForTrimming}), since many file systems
+ * are mounted without access times. Trimming goes a bit below the quota,
+ * so we don't have to scan the cache again after every few downloads.
+ */
+final class DiskCacheTrimmer extends BackgroundThread {
+
+  /** Trim to this fraction of the quota. */
+  private static final double LOW_WATER = 0.9;
+
+  private static final long FIRST_SCAN_MILLIS = 30_000;
+  private static final long SCAN_INTERVAL_MILLIS = 15 * 60_000;
+
+  private final Map<String, Tileset> tilesets;
+  final long globalQuota;
+
+  private boolean startedYet;
+  private long writtenSinceScan;
+  private long scanThreshold = 64L << 20;
+
+  DiskCacheTrimmer(Map<String, Tileset> tilesets, XmlConfig config) {
+    super("Disk cache trimmer");
+    this.tilesets = tilesets;
+    Integer mb = config.integer("diskCache", "", "quotaMegabytes");
+    this.globalQuota = mb == null ? 0 : (long)mb << 20;
+  }
+
+  /**
+   * Called when a tileset is defined that has a quota, or that falls
+   * under the global one.
+   */
+  synchronized void enable(long quota) {
+    if( quota > 0 )
+      scanThreshold = Math.min(scanThreshold, Math.max(1 << 20, quota / 20));
+    if( !startedYet ) {
+      start();
+      startedYet = true;
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        for( var tileset : trimmableTilesets() )
+          tileset.saveAccessTimes();
+      }));
+    }
+  }
+
+  /** Called after writing a tile to the disk cache. */
+  synchronized void wrote(long bytes) {
+    writtenSinceScan += bytes;
+    if( writtenSinceScan > scanThreshold )
+      notify();
+  }
+
+  @Override
+  public void run() {
+    try {
+      synchronized( this ) {
+        wait(FIRST_SCAN_MILLIS);
+      }
+      for(;;) {
+        synchronized( this ) {
+          writtenSinceScan = 0;
+        }
+        trimAll();
+        synchronized( this ) {
+          if( writtenSinceScan <= scanThreshold )
+            wait(SCAN_INTERVAL_MILLIS);
+        }
+      }
+    } catch( InterruptedException e ) {
+      scheduleAbort(e, null);
+    }
+  }
+
+  record Candidate(DiskCachedTileset tileset, long tile, long bytes,
+      long lastUsed, long fileTime) { }
+
+  private List<DiskCachedTileset> trimmableTilesets() {
+    List<DiskCachedTileset> result = new ArrayList<>();
+    synchronized( tilesets ) {
+      for( var t : tilesets.values() )
+        if( t instanceof DiskCachedTileset dct && dct.canBeTrimmed() )
+          result.add(dct);
+    }
+    return result;
+  }
+
+  private void trimAll() {
+    List<Candidate> everything = new ArrayList<>();
+    long total = 0;
+    for( var tileset : trimmableTilesets() ) {
+      List<Candidate> found;
+      try {
+        found = tileset.scanForTrimming();
+      } catch( IOException e ) {
+        System.err.println("Could not scan disk cache for "+tileset.name+
+            ": "+e);
+        continue;
+      }
+      found.sort(Comparator.comparingLong(Candidate::lastUsed));
+      long bytes = sum(found);
+      if( tileset.quota > 0 && bytes > tileset.quota )
+        bytes -= trim(found, bytes, tileset.quota, tileset.name);
+      everything.addAll(found);
+      total += bytes;
+    }
+    if( globalQuota > 0 && total > globalQuota ) {
+      everything.sort(Comparator.comparingLong(Candidate::lastUsed));
+      trim(everything, total, globalQuota, "all tilesets");
+    }
+  }
+
+  private static long sum(List<Candidate> candidates) {
+    long sum = 0;
+    for( var c : candidates ) sum += c.bytes;
+    return sum;
+  }
+
+  /**
+   * Delete from the front of the list (which is sorted oldest first) until
+   * we're below the quota. Tiles that are deleted are removed from the
+   * list. Returns the number of bytes freed.
+   */
+  private static long trim(List<Candidate> candidates, long bytes,
+      long quota, String what) {
+    long target = (long)(quota * LOW_WATER);
+    long freed = 0;
+    int deleted = 0;
+    List<Candidate> kept = new ArrayList<>();
+    for( var c : candidates ) {
+      if( bytes - freed > target && c.tileset.trimTile(c) ) {
+        freed += c.bytes;
+        deleted++;
+      } else {
+        kept.add(c);
+      }
+    }
+    candidates.clear();
+    candidates.addAll(kept);
+    System.err.printf("Disk cache for %s was %d MB; deleted %d tiles "+
+        "(%d MB) to get within the quota of %d MB.%n", what, bytes >> 20,
+        deleted, freed >> 20, quota >> 20);
+    return freed;
+  }
+
+}
@@ -1,21 +1,33 @@
 package net.makholm.henning.mapwarper.tiles;
 
-import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-
-import javax.imageio.ImageIO;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.stream.Stream;
 
 import org.w3c.dom.Element;
 
 import net.makholm.henning.mapwarper.georaster.TileBitmap;
+import net.makholm.henning.mapwarper.georaster.TileImageDecoder;
+import net.makholm.henning.mapwarper.rgb.RGB;
 import net.makholm.henning.mapwarper.util.KeyedLock;
+import net.makholm.henning.mapwarper.util.LongHashMap;
 import net.makholm.henning.mapwarper.util.NiceError;
 
 /**
  * These are "ordinary" tilesets that represent each tile as a single
- * file in the disk cache.
+ * file in the disk cache -- or, if so configured, as an entry in one of
+ * the {@link TilePacks}.
  */
 public abstract class DiskCachedTileset extends Tileset {
 
@@ -23,6 +35,46 @@ public abstract class DiskCachedTileset extends Tileset {
 
   private final KeyedLock<Path> downloadLock = new KeyedLock<>();
 
+  private final boolean usePacks;
+
+  /**
+   * Non-null if the disk cache uses packs instead of a file per tile.
+   * Set by {@link #attach}, as is {@link #diskIndex}.
+   */
+  private TilePacks packs;
+
+  private final NegativeCache knownMissing;
+
+  private final FetchRecords fetches;
+  private final int refreshDays;
+
+  /** Null unless files are used and we can tell tiles from their names. */
+  private DiskIndex diskIndex;
+
+  /** Zero if there's no quota for this tileset in particular. */
+  final long quota;
+  private final boolean trackAccess;
+  /** When each tile was last loaded, in minutes since the epoch. */
+  private final TileStamps accessTimes;
+
+  /**
+   * Tiles found to be stale, waiting for the {@link TileRefresher}, in
+   * the order they were found.
+   */
+  private final LinkedHashSet<Long> staleTiles = new LinkedHashSet<>();
+  private static final int MAX_STALE_QUEUE = 10000;
+
+  /**
+   * Thrown by the download methods when the server says positively that
+   * there is no such tile, as opposed to failing to produce it.
+   */
+  @SuppressWarnings("serial")
+  protected static class NoSuchTile extends IOException {
+    public NoSuchTile(String message) {
+      super(message);
+    }
+  }
+
   protected DiskCachedTileset(TileContext ctx, String name, Element xml) {
     super(ctx, name, xml);
     if( xml.hasAttribute("extension") ) {
@@ -38,6 +90,45 @@ public abstract class DiskCachedTileset extends Tileset {
             name, s);
       extension = s.substring(j, i);
     }
+
+    String storage = stringAttr(xml, "storage",
+        ctx.config.string("diskCache", "", "storage"));
+    if( storage == null || storage.equals("files") )
+      usePacks = false;
+    else if( storage.equals("packs") )
+      usePacks = true;
+    else
+      throw NiceError.of("Unknown storage '%s' for %s", storage, name);
+
+    knownMissing = new NegativeCache(cacheRoot.resolve("missing-tiles"),
+        missingDays, ctx.diskWriter);
+
+    fetches = new FetchRecords(cacheRoot.resolve("fetches.log"),
+        ctx.diskWriter);
+    Integer days = ctx.config.integer("diskCache", "", "refreshDays");
+    refreshDays = intAttr(xml, name, "refreshDays", days == null ? 0 : days);
+
+    quota = (long)intAttr(xml, name, "quotaMegabytes", 0) << 20;
+    accessTimes = new TileStamps(cacheRoot.resolve("access-times"),
+        0x4D574154); // "MWAT"
+    if( usePacks ) {
+      if( quota > 0 )
+        System.err.println("Ignoring the disk quota for "+name+
+            ", which uses packed storage.");
+      trackAccess = false;
+    } else {
+      trackAccess = quota > 0 || ctx.diskTrimmer.globalQuota > 0;
+    }
+  }
+
+  @Override
+  protected void attach() {
+    if( usePacks )
+      packs = new TilePacks(this, packRoot());
+    else if( canIndexDisk() )
+      diskIndex = new DiskIndex(this);
+    if( trackAccess )
+      context.diskTrimmer.enable(quota);
   }
 
   /** Most providers use 256-pixel tiles, but this can be overridden. */
@@ -59,50 +150,499 @@ public abstract class DiskCachedTileset extends Tileset {
    */
   protected abstract Path fileForTile(long tile);
 
-  private static BufferedImage readFromFile(Path file) throws IOException {
-    BufferedImage javaImage = ImageIO.read(file.toFile());
-    if( javaImage == null )
-      throw new IOException("Failed to read "+file+" with no further information");
-    return javaImage;
+  /**
+   * For packed storage: the pack that holds the tile, as a path relative
+   * to {@link #packRoot()} without any extension. Each pack can hold up to
+   * {@link TilePacks#SLOTS} tiles.
+   */
+  protected Path packForTile(long tile) {
+    throw NiceError.of("%s cannot use packed storage", name);
   }
 
-  private BufferedImage produceTileInRam(long tile) throws IOException {
+  /** For packed storage: which slot in its pack the tile uses. */
+  protected int slotInPack(long tile) {
+    throw NiceError.of("%s cannot use packed storage", name);
+  }
+
+  /**
+   * The inverse of {@link #fileForTile(long)}, taking a path relative to
+   * {@link #cacheRoot}. Returns 0 for anything that isn't a tile file.
+   * Tilesets that don't override this can't be moved into packs, and
+   * have to ask the file system each time whether a tile is there.
+   */
+  protected long tileForFile(Path relative) {
+    return 0;
+  }
+
+  /**
+   * Tilesets that override {@link #tileForFile(Path)} should also
+   * override this to return true, so the files that are in the disk
+   * cache can be indexed once instead of asking the file system.
+   */
+  protected boolean canIndexDisk() {
+    return false;
+  }
+
+  private Path packRoot() {
+    return cacheRoot.resolve("packs");
+  }
+
+  /**
+   * Tilesets that get their tiles as a single blob of bytes can override
+   * this to let {@link #downloadTile(long, DownloadCallback)} decode the
+   * tile directly from memory and write the file in the background.
+   * The default returns null, meaning that the tile must be produced
+   * with {@link #produceTileInFile(long, Path)} instead.
+   */
+  protected byte[] produceTileInMemory(long tile)
+      throws IOException, TryDownloadLater {
+    return null;
+  }
+
+  /**
+   * Tiles that have been downloaded and decoded, but not yet written to
+   * the disk cache. They're keyed by shortcode and removed again (under
+   * the writer lock for the file) once the file is complete.
+   */
+  private final LongHashMap<PendingWrite> pendingWrites = new LongHashMap<>();
+
+  private static final class PendingWrite {
+    final byte[] data;
+    TileBitmap decoded;
+
+    PendingWrite(byte[] data, TileBitmap decoded) {
+      this.data = data;
+      this.decoded = decoded;
+    }
+  }
+
+  @Override
+  public boolean isKnownMissing(long tile) {
+    return knownMissing.contains(tile);
+  }
+
+  /**
+   * What to load when the disk cache doesn't have the tile: nothing, or
+   * a placeholder that makes the renderer use its fallback instead.
+   */
+  private TileBitmap missingTile(long tile) {
+    return knownMissing.contains(tile) ? TileBitmap.blank(RGB.OUTSIDE_BITMAP)
+        : null;
+  }
+
+  @Override
+  public TileBitmap loadTile(long tile) throws IOException {
+    var tilesize = tilesize(tile);
+    PendingWrite pending;
+    synchronized( pendingWrites ) {
+      pending = pendingWrites.get(tile);
+      if( pending != null && pending.decoded != null ) {
+        // The downloader decoded it for us; the cache takes it from here.
+        var got = pending.decoded;
+        pending.decoded = null;
+        return got;
+      }
+    }
+    var decoder = TileImageDecoder.forThisThread();
+    if( pending != null )
+      return decoder.decode(ByteBuffer.wrap(pending.data),
+          tilesize, tilesize, tilename(tile));
+    if( packs != null ) {
+      try {
+        var data = packs.read(tile, decoder::scratchBuffer);
+        if( data == null ) return missingTile(tile);
+        var got = decoder.decode(data, tilesize, tilesize, tilename(tile));
+        checkAge(tile, -1);
+        return got;
+      } catch( IOException e ) {
+        packs.forget(tile);
+        throw e;
+      }
+    }
     Path file = fileForTile(tile);
-    if( Files.isRegularFile(file) ) {
+    if( diskIndex != null && !diskIndex.mayExist(tile, file) )
+      return missingTile(tile);
+    BasicFileAttributes attrs;
+    try {
+      attrs = Files.readAttributes(file, BasicFileAttributes.class);
+    } catch( NoSuchFileException e ) {
+      if( diskIndex != null ) diskIndex.removed(tile, file);
+      attrs = null;
+    }
+    if( attrs != null && attrs.isRegularFile() ) {
+      TileBitmap got;
       try( var locked = downloadLock.tryReader(file) ) {
         if( locked == null ) return null;
-        return readFromFile(file);
+        got = decoder.readFile(file, tilesize, tilesize);
       } catch( IOException e ) {
         tryDeleteFile(file);
+        if( diskIndex != null ) diskIndex.removed(tile, file);
         throw e;
       }
+      if( trackAccess ) {
+        synchronized( accessTimes ) {
+          accessTimes.put(tile, nowInMinutes());
+        }
+      }
+      checkAge(tile, attrs.lastModifiedTime().toInstant().getEpochSecond());
+      return got;
     }
+    return missingTile(tile);
+  }
+
+  /**
+   * Queue the tile for revalidation if it's older than refreshDays. If we
+   * have no record of fetching it, the file time is used instead, if any.
+   */
+  private void checkAge(long tile, long fileTime) {
+    if( refreshDays <= 0 ) return;
+    var fetch = fetches.get(tile);
+    long fetchedAt = fetch != null ? fetch.fetchedAt() : fileTime;
+    if( fetchedAt < 0 ||
+        Instant.now().getEpochSecond() - fetchedAt < refreshDays * 86400L )
+      return;
+    synchronized( staleTiles ) {
+      if( staleTiles.size() >= MAX_STALE_QUEUE || !staleTiles.add(tile) )
+        return;
+    }
+    context.refresher.wake();
+  }
+
+  /** Returns 0 if there are no stale tiles waiting. */
+  long nextStaleTile() {
+    synchronized( staleTiles ) {
+      return staleTiles.isEmpty() ? 0 : staleTiles.removeFirst();
+    }
+  }
+
+  /**
+   * Called by HTTP-based subclasses whenever the server has given us the
+   * tile, or confirmed that our copy is still good.
+   */
+  protected final void recordFetch(long tile, String etag,
+      String lastModified) {
+    fetches.record(tile, etag, lastModified);
+  }
+
+  /**
+   * Ask the server for the tile again, unless it is still the same as
+   * when it had the given validators (either of which may be null).
+   * Returns null if it is the same, or if we cannot tell -- which is
+   * what this default implementation does.
+   */
+  protected byte[] refetchIfChanged(long tile, String etag,
+      String lastModified) throws IOException, TryDownloadLater {
     return null;
   }
 
-  @Override
-  public TileBitmap loadTile(long tile) throws IOException {
-    var rawBitmap = produceTileInRam(tile);
-    if( rawBitmap == null ) return null;
+  /**
+   * Revalidate a stale tile, replacing it in the disk cache if the server
+   * has something newer. Once it is written, the old copies in the RAM
+   * cache are forgotten, so the next render loads the new one.
+   */
+  void refreshTile(long tile) throws IOException, TryDownloadLater {
+    var previous = fetches.get(tile);
+    byte[] data;
+    try {
+      data = previous == null ? refetchIfChanged(tile, null, null)
+          : refetchIfChanged(tile, previous.etag(), previous.lastModified());
+    } catch( NoSuchTile e ) {
+      // Keep the copy we have; it's better than nothing.
+      System.err.println(e.getMessage());
+      return;
+    }
+    if( data == null ) {
+      metrics.revalidated.increment();
+      return;
+    }
     var tilesize = tilesize(tile);
-    if( rawBitmap.getWidth() != tilesize || rawBitmap.getHeight() != tilesize )
-      throw NiceError.of("Got %dx%d tile for %s; expected %dx%d",
-          rawBitmap.getWidth(), rawBitmap.getHeight(), tilename(tile),
-          tilesize, tilesize);
-    return TileBitmap.of(rawBitmap);
+    TileImageDecoder.forThisThread().decode(
+        ByteBuffer.wrap(data), tilesize, tilesize, tilename(tile));
+    metrics.refreshed.increment();
+    var pending = new PendingWrite(data, null);
+    synchronized( pendingWrites ) {
+      pendingWrites.put(tile, pending);
+    }
+    context.diskWriter.execute(() -> {
+      writePending(tile, pending);
+      context.ramCache.invalidate(this, tile);
+    });
   }
 
   @Override
   public void downloadTile(long tile, DownloadCallback callback)
       throws IOException, TryDownloadLater {
+    byte[] data;
+    try {
+      data = produceTileInMemory(tile);
+    } catch( NoSuchTile e ) {
+      System.err.println(e.getMessage());
+      knownMissing.add(tile);
+      return;
+    }
+    if( data == null ) {
+      downloadToDisk(tile);
+      return;
+    }
+    // Decode it right away, so bad data is rejected before it gets
+    // anywhere near the disk.
+    var tilesize = tilesize(tile);
+    var decoded = TileImageDecoder.forThisThread().decode(
+        ByteBuffer.wrap(data), tilesize, tilesize, tilename(tile));
+    var pending = new PendingWrite(data, decoded);
+    synchronized( pendingWrites ) {
+      pendingWrites.put(tile, pending);
+    }
+    context.diskWriter.execute(() -> writePending(tile, pending));
+  }
+
+  private void writePending(long tile, PendingWrite pending) {
+    if( packs != null ) {
+      try {
+        packs.write(tile, pending.data);
+      } catch( IOException e ) {
+        System.err.println("Failed to pack "+tilename(tile)+": "+e);
+      }
+      synchronized( pendingWrites ) {
+        if( pendingWrites.get(tile) == pending )
+          pendingWrites.remove(tile);
+      }
+      return;
+    }
+    Path file = fileForTile(tile);
+    try( var _ = downloadLock.takeWriter(file) ) {
+      try {
+        Files.createDirectories(file.getParent());
+        Files.write(file, pending.data);
+        if( diskIndex != null ) diskIndex.added(tile, file);
+        if( trackAccess ) context.diskTrimmer.wrote(pending.data.length);
+      } catch( IOException e ) {
+        System.err.println("Failed to write "+file+": "+e);
+        tryDeleteFile(file);
+        if( diskIndex != null ) diskIndex.removed(tile, file);
+      }
+      synchronized( pendingWrites ) {
+        if( pendingWrites.get(tile) == pending )
+          pendingWrites.remove(tile);
+      }
+    }
+  }
+
+  /**
+   * Download synchronously into the disk cache, and return the number of
+   * bytes stored.
+   */
+  private long downloadToDisk(long tile) throws IOException, TryDownloadLater {
+    try {
+      return produceOnDisk(tile);
+    } catch( NoSuchTile e ) {
+      System.err.println(e.getMessage());
+      knownMissing.add(tile);
+      return 0;
+    }
+  }
+
+  private long produceOnDisk(long tile)
+      throws IOException, TryDownloadLater {
+    if( packs != null ) {
+      byte[] data = produceTileInMemory(tile);
+      if( data == null ) {
+        Files.createDirectories(cacheRoot);
+        Path tmp = Files.createTempFile(cacheRoot, "download", extension);
+        try {
+          produceTileInFile(tile, tmp);
+          data = Files.readAllBytes(tmp);
+        } finally {
+          tryDeleteFile(tmp);
+        }
+      }
+      packs.write(tile, data);
+      return data.length;
+    }
     Path file = fileForTile(tile);
     try( var _ = downloadLock.takeWriter(file) ) {
       file.getParent().toFile().mkdirs();
       produceTileInFile(tile, file);
     } catch( IOException | TryDownloadLater e ) {
       tryDeleteFile(file);
+      if( diskIndex != null ) diskIndex.removed(tile, file);
       throw e;
     }
+    long size = Files.isRegularFile(file) ? Files.size(file) : 0;
+    if( diskIndex != null && size > 0 ) diskIndex.added(tile, file);
+    if( trackAccess ) context.diskTrimmer.wrote(size);
+    return size;
+  }
+
+  /**
+   * Make sure the tile is in the disk cache, downloading it if it isn't.
+   * Returns the number of bytes downloaded, or -1 if the tile was
+   * already there.
+   */
+  public long prefetchTile(long tile) throws IOException, TryDownloadLater {
+    synchronized( pendingWrites ) {
+      if( pendingWrites.containsKey(tile) )
+        return -1;
+    }
+    if( knownMissing.contains(tile) )
+      return -1;
+    if( packs != null ? packs.contains(tile) : fileIsThere(tile) )
+      return -1;
+    // Store it synchronously; we may be about to exit.
+    return downloadToDisk(tile);
+  }
+
+  private boolean fileIsThere(long tile) {
+    Path file = fileForTile(tile);
+    if( diskIndex != null && !diskIndex.mayExist(tile, file) )
+      return false;
+    return Files.isRegularFile(file);
+  }
+
+  /**
+   * Move tiles from the file-per-tile layout of the disk cache into packs,
+   * deleting each file once it is safely packed. Returns the number of
+   * tiles moved.
+   */
+  public int importFilesIntoPacks() throws IOException {
+    if( packs == null )
+      throw NiceError.of("%s is not configured with storage=\"packs\"", name);
+    Path packRoot = packRoot();
+    List<Path> imported = new ArrayList<>();
+    try( Stream<Path> files = Files.walk(cacheRoot) ) {
+      for( Path file : (Iterable<Path>)files::iterator ) {
+        if( file.startsWith(packRoot) ||
+            !file.getFileName().toString().endsWith(extension) ||
+            !Files.isRegularFile(file) )
+          continue;
+        long tile = tileForFile(cacheRoot.relativize(file));
+        if( tile == 0 ) continue;
+        // If it's already packed, the packed copy is the newer one.
+        if( !packs.contains(tile) )
+          packs.write(tile, Files.readAllBytes(file));
+        imported.add(file);
+        if( imported.size() % 10000 == 0 )
+          System.err.println("  ... "+imported.size()+" tiles packed");
+      }
+    }
+    packs.force();
+    for( Path file : imported )
+      Files.delete(file);
+    try( Stream<Path> dirs = Files.walk(cacheRoot) ) {
+      dirs.filter(d -> !d.equals(cacheRoot) && !d.startsWith(packRoot))
+      .filter(Files::isDirectory)
+      .sorted(Comparator.reverseOrder())
+      .forEach(d -> {
+        try {
+          Files.delete(d);
+        } catch( IOException _ ) {
+          // not empty, presumably
+        }
+      });
+    }
+    return imported.size();
+  }
+
+  /**
+   * Rewrite packs that have accumulated a lot of replaced tiles. Returns
+   * the number of bytes freed.
+   */
+  public long compactPacks() throws IOException {
+    if( packs == null )
+      throw NiceError.of("%s is not configured with storage=\"packs\"", name);
+    return packs.compact(0.25);
+  }
+
+  // -------------------------------------------------------------------------
+  // Support for the DiskCacheTrimmer
+
+  private static int nowInMinutes() {
+    return (int)(System.currentTimeMillis() / 60_000);
+  }
+
+  boolean canBeTrimmed() {
+    return trackAccess;
+  }
+
+  void saveAccessTimes() {
+    TileStamps.Snapshot snapshot;
+    synchronized( accessTimes ) {
+      if( !accessTimes.isDirty() ) return;
+      snapshot = accessTimes.snapshot(_ -> true);
+    }
+    snapshot.write();
+  }
+
+  /**
+   * List the tiles in the disk cache, with when each was last used -- that
+   * is, loaded or written, whichever is later.
+   */
+  List<DiskCacheTrimmer.Candidate> scanForTrimming() throws IOException {
+    saveAccessTimes();
+    List<DiskCacheTrimmer.Candidate> found = new ArrayList<>();
+    if( !Files.isDirectory(cacheRoot) ) return found;
+    Files.walkFileTree(cacheRoot, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        if( !attrs.isRegularFile() ||
+            !file.getFileName().toString().endsWith(extension) )
+          return FileVisitResult.CONTINUE;
+        long tile = tileForFile(cacheRoot.relativize(file));
+        if( tile == 0 ) return FileVisitResult.CONTINUE;
+        long fileTime = attrs.lastModifiedTime().toMillis();
+        long accessed;
+        synchronized( accessTimes ) {
+          accessed = accessTimes.get(tile) * 60_000L;
+        }
+        found.add(new DiskCacheTrimmer.Candidate(DiskCachedTileset.this,
+            tile, attrs.size(), Math.max(fileTime, accessed), fileTime));
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFileFailed(Path file, IOException e) {
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return found;
+  }
+
+  /**
+   * Delete a tile found by {@link #scanForTrimming()}, unless someone is
+   * reading or writing it right now, or it's been used or replaced since
+   * the scan. Returns true if the tile is gone.
+   */
+  boolean trimTile(DiskCacheTrimmer.Candidate c) {
+    synchronized( pendingWrites ) {
+      if( pendingWrites.containsKey(c.tile()) ) return false;
+    }
+    Path file = fileForTile(c.tile());
+    try( var locked = downloadLock.tryWriter(file) ) {
+      if( locked == null ) return false;
+      synchronized( accessTimes ) {
+        if( accessTimes.get(c.tile()) * 60_000L > c.lastUsed() )
+          return false;
+      }
+      try {
+        if( Files.getLastModifiedTime(file).toMillis() != c.fileTime() )
+          return false;
+        Files.delete(file);
+      } catch( NoSuchFileException e ) {
+        // Someone beat us to it
+      } catch( IOException e ) {
+        System.err.println("Could not delete "+file+": "+e);
+        return false;
+      }
+      // Only now, or a tile that was downloaded again since the scan
+      // would look as if it had never been used.
+      synchronized( accessTimes ) {
+        accessTimes.remove(c.tile());
+      }
+      if( diskIndex != null ) diskIndex.removed(c.tile(), file);
+    }
+    // Directories are left behind even if they become empty. Deleting
+    // them would race with writers that have just created them.
+    return true;
   }
 
   protected static void tryDeleteFile(Path file) {
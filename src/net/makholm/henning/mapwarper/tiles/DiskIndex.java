@@ -0,0 +1,88 @@
+package net.makholm.henning.mapwarper.tiles;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.makholm.henning.mapwarper.util.LongHashMap;
+
+/**
+ * Which tiles are in the file-per-tile disk cache of a
+ * {@link DiskCachedTileset}, so the renderer's many probes for tiles
+ * that aren't there (mostly at fallback zoom levels) can be answered
+ * without asking the file system each time.
+ *
+ * The index is built a directory at a time, when a tile in it is first
+ * asked about, by listing the directory. After that it's kept current
+ * by the tileset as it writes and deletes tiles. It errs only on the
+ * side of believing a tile is there, which the caller finds out soon
+ * enough and reports with {@link #removed}.
+ */
+final class DiskIndex {
+
+  private final DiskCachedTileset owner;
+  private final Map<Path, Bucket> buckets = new HashMap<>();
+
+  DiskIndex(DiskCachedTileset owner) {
+    this.owner = owner;
+  }
+
+  private static final class Bucket {
+    final LongHashMap<Boolean> tiles = new LongHashMap<>();
+    boolean ready;
+  }
+
+  /**
+   * Returns false if the tile is definitely not on disk. If it returns
+   * true, the tile is probably there.
+   */
+  boolean mayExist(long tile, Path file) {
+    Path dir = file.getParent();
+    Bucket bucket;
+    synchronized( this ) {
+      bucket = buckets.get(dir);
+      if( bucket != null )
+        return !bucket.ready || bucket.tiles.containsKey(tile);
+      bucket = new Bucket();
+      buckets.put(dir, bucket);
+    }
+    // List the directory without holding the lock. Tiles written in the
+    // meantime go straight into the bucket, so they aren't missed.
+    LongHashMap<Boolean> found = new LongHashMap<>();
+    try( DirectoryStream<Path> files = Files.newDirectoryStream(dir) ) {
+      for( Path p : files ) {
+        long t = owner.tileForFile(owner.cacheRoot.relativize(p));
+        if( t != 0 ) found.put(t, Boolean.TRUE);
+      }
+    } catch( NoSuchFileException e ) {
+      // Then it's empty
+    } catch( IOException e ) {
+      synchronized( this ) {
+        buckets.remove(dir);
+      }
+      return true;
+    }
+    synchronized( this ) {
+      for( int i=0; i<found.slots(); i++ )
+        if( found.keyAt(i) != 0 )
+          bucket.tiles.put(found.keyAt(i), Boolean.TRUE);
+      bucket.ready = true;
+      return bucket.tiles.containsKey(tile);
+    }
+  }
+
+  synchronized void added(long tile, Path file) {
+    var bucket = buckets.get(file.getParent());
+    if( bucket != null ) bucket.tiles.put(tile, Boolean.TRUE);
+  }
+
+  synchronized void removed(long tile, Path file) {
+    var bucket = buckets.get(file.getParent());
+    if( bucket != null ) bucket.tiles.remove(tile);
+  }
+
+}
@@ -0,0 +1,253 @@
+package net.makholm.henning.mapwarper.tiles;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import org.w3c.dom.Element;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import net.makholm.henning.mapwarper.georaster.WebMercatorAddresser;
+import net.makholm.henning.mapwarper.util.BackgroundThread;
+import net.makholm.henning.mapwarper.util.NiceError;
+import net.makholm.henning.mapwarper.util.Regexer;
+import net.makholm.henning.mapwarper.util.XmlConfig;
+
+/**
+ * Measures how fast the downloaders get through a batch of tiles from a
+ * mock tile server on localhost that answers every request after a fixed
+ * latency, for 1, 2, 4, ... parallel downloads per tileset. Each tile goes
+ * the whole way: queue, HTTP, disk cache, decode, and delivery to the
+ * subscriber. The tiles are cached in a temporary directory that is
+ * deleted again afterwards.
+ *
+ * Also times the operations on the {@link DownloadQueue} itself.
+ */
+public final class DownloadBenchmark {
+
+  private int maxParallel = 8;
+  private int tilesPerRun = 200;
+  private int latencyMillis = 50;
+  private int queueSize = 100_000;
+
+  private final TileContext ctx;
+
+  private DownloadBenchmark(TileContext ctx) {
+    this.ctx = ctx;
+  }
+
+  public static void run(TileContext ctx, Deque<String> words,
+      PrintStream out) {
+    var bench = new DownloadBenchmark(ctx);
+    for( String word : words ) {
+      Regexer re = new Regexer(word);
+      if( re.match("parallel=" + Regexer.cNat) )
+        bench.maxParallel = Math.max(1, re.igroup(1));
+      else if( re.match("tiles=" + Regexer.cNat) )
+        bench.tilesPerRun = Math.max(1, re.igroup(1));
+      else if( re.match("latency=" + Regexer.cNat) )
+        bench.latencyMillis = re.igroup(1);
+      else if( re.match("queue=" + Regexer.cNat) )
+        bench.queueSize = Math.max(1, re.igroup(1));
+      else
+        throw NiceError.of("Unrecognized downloads benchmark option '%s'",
+            word);
+    }
+    bench.benchmarkQueue(out);
+    try {
+      bench.benchmarkDownloads(out);
+    } catch( IOException e ) {
+      throw NiceError.of("Download benchmark failed: %s", e);
+    }
+  }
+
+  // -------------------------------------------------------------------------
+
+  private void benchmarkQueue(PrintStream out) {
+    var random = new Random(1);
+    long[] priorities = new long[queueSize];
+    // Warm up the JIT with a few rounds before the one we time.
+    for( int round = 0; round < 5; round++ ) {
+      var queue = new DownloadQueue();
+      long t0 = System.nanoTime();
+      for( int i = 0; i < queueSize; i++ ) {
+        priorities[i] = random.nextLong(1L << 40);
+        queue.offer(queue.getOrCreate(i+1), priorities[i]);
+      }
+      long t1 = System.nanoTime();
+      queue.rekey(r -> priorities[(int)r.tile-1] ^ 0x5555555555L);
+      long t2 = System.nanoTime();
+      long previous = Long.MIN_VALUE;
+      for( var r = queue.pollHeap(); r != null; r = queue.pollHeap() ) {
+        if( r.priority < previous )
+          throw NiceError.of("Download queue polled out of order!");
+        previous = r.priority;
+        queue.remove(r.tile);
+      }
+      long t3 = System.nanoTime();
+      if( round == 4 )
+        out.printf(Locale.ROOT, "Download queue with %d tiles: "+
+            "offer %.0f ns, rekey %.0f ns, poll+remove %.0f ns per tile%n",
+            queueSize, (t1-t0) / (double)queueSize,
+            (t2-t1) / (double)queueSize, (t3-t2) / (double)queueSize);
+    }
+  }
+
+  // -------------------------------------------------------------------------
+
+  private final AtomicInteger serving = new AtomicInteger();
+  private final AtomicInteger mostServing = new AtomicInteger();
+  private final AtomicInteger requests = new AtomicInteger();
+
+  private void benchmarkDownloads(PrintStream out) throws IOException {
+    byte[] png = makePng();
+    var server = HttpServer.create(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 100);
+    server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+    server.createContext("/", exchange -> serve(exchange, png));
+    server.start();
+    String host = server.getAddress().getHostString();
+    // Our own host limit shouldn't be what we measure.
+    ctx.config.override("downloadHost", host, "maxConnections",
+        Integer.toString(maxParallel));
+
+    Path scratch = Files.createTempDirectory("mapwarper-downloads");
+    try {
+      out.printf(Locale.ROOT, "Downloading %d tiles per run from a mock "+
+          "server with %d ms latency%n", tilesPerRun, latencyMillis);
+      double single = 0;
+      int runs = 0;
+      for( int n = 1; ; n = Math.min(n * 2, maxParallel) ) {
+        runs++;
+        String name = "downloadbench"+n;
+        ctx.config.override("tilecache", name,
+            scratch.resolve(name).toString());
+        var tileset = Tileset.create(ctx, name, syntheticXml(name,
+            "http://"+host+":"+server.getAddress().getPort()+"/*.png", n));
+        double rate = downloadAll(tileset);
+        if( n == 1 ) single = rate;
+        out.printf(Locale.ROOT, "%3d parallel: %8.1f tiles/s  "+
+            "(%.2fx one at a time, at most %d requests at once)%n",
+            n, rate, rate / single, mostServing.getAndSet(0));
+        if( n == maxParallel ) break;
+      }
+      if( requests.get() != runs * tilesPerRun )
+        out.println("(The server got "+requests.get()+" requests for "+
+            runs * tilesPerRun+" tiles.)");
+    } finally {
+      server.stop(0);
+      drainDiskWriter();
+      deleteRecursively(scratch);
+    }
+  }
+
+  /** Returns tiles per second. */
+  private double downloadAll(Tileset tileset) {
+    var arrived = new CountDownLatch(tilesPerRun);
+    List<Runnable> unsubscribers = new ArrayList<>();
+    int side = (int)Math.ceil(Math.sqrt(tilesPerRun));
+    long start = System.nanoTime();
+    for( int i = 0; i < tilesPerRun; i++ ) {
+      long tile = WebMercatorAddresser.makeShortcode(16,
+          34000 + i % side, 21000 + i / side);
+      unsubscribers.add(new TileSpec(tileset, tile).request(
+          _ -> arrived.countDown()));
+    }
+    try {
+      while( !arrived.await(1, TimeUnit.SECONDS) ) {
+        if( BackgroundThread.shouldAbort() ) {
+          BackgroundThread.printStackTrace();
+          throw NiceError.of("The downloader failed");
+        }
+      }
+    } catch( InterruptedException e ) {
+      throw NiceError.of("Interrupted");
+    }
+    double elapsed = (System.nanoTime() - start) / 1e9;
+    unsubscribers.forEach(Runnable::run);
+    return tilesPerRun / elapsed;
+  }
+
+  private void serve(HttpExchange exchange, byte[] png) throws IOException {
+    requests.incrementAndGet();
+    int now = serving.incrementAndGet();
+    mostServing.accumulateAndGet(now, Math::max);
+    try {
+      Thread.sleep(latencyMillis);
+      exchange.getResponseHeaders().set("Content-Type", "image/png");
+      exchange.sendResponseHeaders(200, png.length);
+      exchange.getResponseBody().write(png);
+    } catch( InterruptedException e ) {
+      exchange.sendResponseHeaders(500, -1);
+    } finally {
+      serving.decrementAndGet();
+      exchange.close();
+    }
+  }
+
+  private static Element syntheticXml(String name, String url, int parallel) {
+    Element elt = XmlConfig.freshElement("tileset");
+    elt.setAttribute("name", name);
+    elt.setAttribute("desc", "Mock tiles for benchmarking downloads");
+    elt.setAttribute("tileurl", url);
+    elt.setAttribute("parallelDownloads", Integer.toString(parallel));
+    return elt;
+  }
+
+  /** A noisy tile, so it's about as big as a real one. */
+  private static byte[] makePng() throws IOException {
+    var random = new Random(2);
+    var image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+    for( int y = 0; y < 256; y++ )
+      for( int x = 0; x < 256; x++ )
+        image.setRGB(x, y, (x * 0x010203 + y * 0x030201) & 0xF0F0F0 |
+            random.nextInt(16) * 0x010101);
+    var bytes = new ByteArrayOutputStream();
+    ImageIO.write(image, "png", bytes);
+    return bytes.toByteArray();
+  }
+
+  /** Wait for tiles that are still on their way to the disk. */
+  private void drainDiskWriter() {
+    var done = new CountDownLatch(1);
+    ctx.diskWriter.execute(done::countDown);
+    try {
+      done.await();
+    } catch( InterruptedException e ) {
+      throw NiceError.of("Interrupted");
+    }
+  }
+
+  private static void deleteRecursively(Path root) throws IOException {
+    try( var paths = Files.walk(root) ) {
+      paths.sorted(Comparator.reverseOrder()).forEach(p -> {
+        try {
+          Files.delete(p);
+        } catch( IOException e ) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    }
+  }
+
+}
@@ -0,0 +1,169 @@
+package net.makholm.henning.mapwarper.tiles;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+import net.makholm.henning.mapwarper.georaster.TileBitmap;
+import net.makholm.henning.mapwarper.util.LongHashMap;
+
+/**
+ * The eager download requests for a single tileset, indexed by shortcode
+ * and at the same time arranged in a binary heap by download priority,
+ * so the most urgent one can be found without looking at all of them.
+ *
+ * A request can be known by shortcode without being in the heap; this
+ * is the case while it is being downloaded, and while it is deferred
+ * after a failure.
+ *
+ * Not thread safe; belongs to the lock on the {@link TileDownloader}.
+ */
+final class DownloadQueue {
+
+  static final class Request {
+    final long tile;
+    final Set<Consumer<TileBitmap>> subscribers = new LinkedHashSet<>();
+    long priority;
+    int heapIndex = -1;
+
+    /** Intermittent download failures, and when we may try again. */
+    int failures;
+    long retryAt;
+    /** True while waiting in the downloader's list of deferred tiles. */
+    boolean deferred;
+
+    private Request(long tile) {
+      this.tile = tile;
+    }
+
+    boolean inHeap() {
+      return heapIndex >= 0;
+    }
+  }
+
+  private final LongHashMap<Request> byTile = new LongHashMap<>();
+  private Request[] heap = new Request[16];
+  private int heapSize;
+
+  boolean isEmpty() {
+    return byTile.isEmpty();
+  }
+
+  boolean heapIsEmpty() {
+    return heapSize == 0;
+  }
+
+  int heapSize() {
+    return heapSize;
+  }
+
+  Request get(long tile) {
+    return byTile.get(tile);
+  }
+
+  boolean containsKey(long tile) {
+    return byTile.containsKey(tile);
+  }
+
+  /**
+   * Find or create the request for a tile. A fresh request is
+   * <em>not</em> put into the heap; use {@link #offer(Request, long)}
+   * for that.
+   */
+  Request getOrCreate(long tile) {
+    return byTile.computeIfAbsent(tile, Request::new);
+  }
+
+  void offer(Request r, long priority) {
+    if( r.inHeap() ) {
+      long old = r.priority;
+      r.priority = priority;
+      if( priority < old ) siftUp(r.heapIndex); else siftDown(r.heapIndex);
+    } else {
+      if( heapSize == heap.length ) {
+        var newHeap = new Request[heap.length * 2];
+        System.arraycopy(heap, 0, newHeap, 0, heapSize);
+        heap = newHeap;
+      }
+      r.priority = priority;
+      place(r, heapSize++);
+      siftUp(r.heapIndex);
+    }
+  }
+
+  /**
+   * Take the most urgent request out of the heap. It stays known by its
+   * shortcode until it is {@link #remove(long)}d.
+   */
+  Request pollHeap() {
+    if( heapSize == 0 )
+      return null;
+    Request top = heap[0];
+    takeOutOfHeap(top);
+    return top;
+  }
+
+  Request remove(long tile) {
+    Request r = byTile.remove(tile);
+    if( r != null && r.inHeap() )
+      takeOutOfHeap(r);
+    return r;
+  }
+
+  /**
+   * Recompute the priority of everything in the heap, for example
+   * because the download focus has moved.
+   */
+  void rekey(ToLongFunction<Request> priorityFunction) {
+    for( int i=0; i<heapSize; i++ )
+      heap[i].priority = priorityFunction.applyAsLong(heap[i]);
+    for( int i = heapSize/2 - 1; i >= 0; i-- )
+      siftDown(i);
+  }
+
+  // -------------------------------------------------------------------------
+
+  private void takeOutOfHeap(Request r) {
+    int i = r.heapIndex;
+    r.heapIndex = -1;
+    heapSize--;
+    if( i != heapSize ) {
+      Request last = heap[heapSize];
+      place(last, i);
+      if( last.priority < r.priority ) siftUp(i); else siftDown(i);
+    }
+    heap[heapSize] = null;
+  }
+
+  private void place(Request r, int i) {
+    heap[i] = r;
+    r.heapIndex = i;
+  }
+
+  private void siftUp(int i) {
+    Request r = heap[i];
+    while( i > 0 ) {
+      int parent = (i-1) >> 1;
+      if( heap[parent].priority <= r.priority ) break;
+      place(heap[parent], i);
+      i = parent;
+    }
+    place(r, i);
+  }
+
+  private void siftDown(int i) {
+    Request r = heap[i];
+    for(;;) {
+      int child = 2*i + 1;
+      if( child >= heapSize ) break;
+      if( child+1 < heapSize && heap[child+1].priority < heap[child].priority )
+        child++;
+      if( r.priority <= heap[child].priority ) break;
+      place(heap[child], i);
+      i = child;
+    }
+    place(r, i);
+  }
+
+}
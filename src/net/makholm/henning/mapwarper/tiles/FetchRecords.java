@@ -0,0 +1,128 @@
+package net.makholm.henning.mapwarper.tiles;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.Executor;
+
+import net.makholm.henning.mapwarper.util.LongHashMap;
+
+/**
+ * When each tile in the disk cache of a {@link DiskCachedTileset} was
+ * fetched, along with the {@code ETag} and {@code Last-Modified} the
+ * server sent with it, so stale tiles can be revalidated cheaply.
+ *
+ * On disk this is a log with a line per fetch, which is appended to in
+ * the background and read into memory the first time it's needed. The
+ * latest line for a tile wins; the log is rewritten when it has grown
+ * to be mostly superseded lines.
+ */
+final class FetchRecords {
+
+  record Fetch(long fetchedAt, String etag, String lastModified) { }
+
+  private final Path file;
+  private final Executor writer;
+
+  /** Null until loaded */
+  private LongHashMap<Fetch> fetches;
+  private int linesInFile;
+
+  FetchRecords(Path file, Executor writer) {
+    this.file = file;
+    this.writer = writer;
+  }
+
+  synchronized Fetch get(long tile) {
+    load();
+    return fetches.get(tile);
+  }
+
+  void record(long tile, String etag, String lastModified) {
+    var fetch = new Fetch(Instant.now().getEpochSecond(),
+        clean(etag), clean(lastModified));
+    synchronized( this ) {
+      load();
+      fetches.put(tile, fetch);
+    }
+    writer.execute(() -> append(tile, fetch));
+  }
+
+  /** Header values can't contain newlines, but tabs are legal. */
+  private static String clean(String s) {
+    return s == null || s.isBlank() ? null : s.replace('\t', ' ');
+  }
+
+  /** Called with the lock held */
+  private void load() {
+    if( fetches != null ) return;
+    fetches = new LongHashMap<>();
+    if( !Files.isRegularFile(file) ) return;
+    try( BufferedReader in = Files.newBufferedReader(file) ) {
+      for( String line; (line = in.readLine()) != null; ) {
+        linesInFile++;
+        String[] words = line.split("\t", -1);
+        if( words.length != 4 ) continue;
+        try {
+          fetches.put(Long.parseUnsignedLong(words[0], 16), new Fetch(
+              Long.parseLong(words[1]), clean(words[2]), clean(words[3])));
+        } catch( NumberFormatException e ) {
+          // Probably a partly written line; skip it
+        }
+      }
+    } catch( IOException e ) {
+      System.err.println("Cannot read "+file+": "+e);
+    }
+    if( linesInFile > 2 * fetches.size() + 1000 )
+      writer.execute(this::rewrite);
+  }
+
+  private static String format(long tile, Fetch fetch) {
+    return Long.toHexString(tile)+"\t"+fetch.fetchedAt+"\t"+
+        (fetch.etag == null ? "" : fetch.etag)+"\t"+
+        (fetch.lastModified == null ? "" : fetch.lastModified)+"\n";
+  }
+
+  /** Runs on the writer thread */
+  private void append(long tile, Fetch fetch) {
+    try {
+      Files.createDirectories(file.getParent());
+      try( Writer out = Files.newBufferedWriter(file,
+          StandardOpenOption.CREATE, StandardOpenOption.APPEND) ) {
+        out.write(format(tile, fetch));
+      }
+    } catch( IOException e ) {
+      System.err.println("Failed to write "+file+": "+e);
+    }
+  }
+
+  /**
+   * Runs on the writer thread, so appends that were queued before us
+   * are already in the file, and the ones queued after us will go into
+   * the new one.
+   */
+  private void rewrite() {
+    Path tmp = file.resolveSibling(file.getFileName()+".new");
+    try {
+      synchronized( this ) {
+        try( Writer out = Files.newBufferedWriter(tmp) ) {
+          for( int i=0; i<fetches.slots(); i++ )
+            if( fetches.keyAt(i) != 0 )
+              out.write(format(fetches.keyAt(i), fetches.valueAt(i)));
+        }
+        linesInFile = fetches.size();
+      }
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch( IOException e ) {
+      System.err.println("Failed to rewrite "+file+": "+e);
+      DiskCachedTileset.tryDeleteFile(tmp);
+    }
+  }
+
+}
@@ -8,6 +8,9 @@ import java.net.http.HttpResponse;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Locale;
 
 import org.w3c.dom.Element;
@@ -121,9 +124,13 @@ public class GeoDanmark extends Tileset {
   protected TileBitmap loadTile(long tile) throws IOException {
     var path = fileForMaxitile(tile);
     TileBitmap got;
+    BasicFileAttributes expired = null;
     try( var locked = truncateLock.tryReader(path) ) {
       if( locked == null ) return null;
       got = decoder.decode(path, tile);
+      if( got.numPixels == 1 &&
+          got.pixelByIndex(0) == CompoundDecoder.EMPTY_ZIP )
+        expired = expiredEmptyZip(path);
     } catch( NiceError e ) {
       e.printStackTrace();
       throw BadError.of("Could not decode tile %s: %s", tilename(tile), e);
@@ -132,12 +139,48 @@ public class GeoDanmark extends Tileset {
       return got;
     switch( got.pixelByIndex(0) ) {
     case CompoundDecoder.EMPTY_ZIP:
+      if( expired != null ) {
+        // Perhaps the coverage has been extended since; ask again.
+        // A download may have replaced the file after we let go of the
+        // reader lock, so only delete it if it's still the one we saw.
+        // And don't wait for the lock; if someone else has it, they're
+        // already doing something about the file.
+        try( var locked = truncateLock.tryWriter(path) ) {
+          if( locked != null && sameFile(expired, path) )
+            DiskCachedTileset.tryDeleteFile(path);
+        }
+        return null;
+      }
       return CompoundAddresser.pseudotile(tile, got.pixelByIndex(0));
     default:
       return null;
     }
   }
 
+  /**
+   * The empty zip we write for a 404 is our negative cache entry for the
+   * maxitile. With missingDays="0" it's kept indefinitely.
+   *
+   * @return the attributes of the file if it has expired, else null.
+   */
+  private BasicFileAttributes expiredEmptyZip(Path path) throws IOException {
+    if( missingDays <= 0 ) return null;
+    var attrs = Files.readAttributes(path, BasicFileAttributes.class);
+    var age = Duration.between(attrs.lastModifiedTime().toInstant(),
+        Instant.now());
+    return age.toDays() >= missingDays ? attrs : null;
+  }
+
+  private static boolean sameFile(BasicFileAttributes before, Path path) {
+    try {
+      var now = Files.readAttributes(path, BasicFileAttributes.class);
+      return now.size() == before.size() &&
+          now.lastModifiedTime().equals(before.lastModifiedTime());
+    } catch( IOException e ) {
+      return false;
+    }
+  }
+
   @Override
   protected void downloadTile(long tile, DownloadCallback callback)
       throws IOException, TryDownloadLater {
@@ -178,14 +221,16 @@ public class GeoDanmark extends Tileset {
         return HttpResponse.BodySubscribers.ofFile(bodyFile);
       }
     };
-    try {
+    try( var _ = context.hostLimits.acquire(uri) ) {
       var response = http.send(request.build(), handler);
       int code = response.statusCode();
       switch( code ) {
       case 200:
       case 404:
+        context.hostLimits.reportSuccess(uri);
         break;
       case 500:
+        context.hostLimits.reportFailure(uri);
         throw new TryDownloadLater("Got HTTP response "+code);
       default:
         throw new IOException("Tile fetching failed for "+url);
@@ -208,12 +253,14 @@ public class GeoDanmark extends Tileset {
         if( msg != null ) {
           if( msg.indexOf("Connection reset") >= 0 ||
               msg.indexOf("GOAWAY received") >= 0 ) {
+            context.hostLimits.reportFailure(uri);
             throw new TryDownloadLater(e);
           }
         }
         throw e;
       }
     }
+    metrics.bytesDownloaded.add(Files.size(dest));
     var seconds = (System.nanoTime()-starttime)/1e9;
     System.err.printf(Locale.ROOT,"  (got %s with %d bytes in %.1f seconds)\n",
         maxiname, Files.size(dest),seconds);
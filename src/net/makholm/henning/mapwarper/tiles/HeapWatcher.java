@@ -0,0 +1,117 @@
+package net.makholm.henning.mapwarper.tiles;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Sizes a heap-based {@link TileCache} according to how full the old
+ * generation actually is after garbage collection, rather than trusting
+ * a fixed fraction of the heap to be right.
+ *
+ * When the old generation is still more than {@link #HIGH_WATER} full
+ * after a collection, the cache shrinks. When it is less than
+ * {@link #LOW_WATER} full and the cache is using all the room it has,
+ * the cache is allowed to grow. The JVM's collection usage threshold
+ * makes sure we hear about heap pressure promptly, even if the GC
+ * notifications come in bunches.
+ */
+final class HeapWatcher {
+
+  private static final double HIGH_WATER = 0.80;
+  private static final double LOW_WATER = 0.55;
+
+  private final TileCache cache;
+  private final MemoryPoolMXBean oldGen;
+  private final long floor, ceiling;
+
+  /** The same collection may be reported both ways; react only once. */
+  private long lastCollectionCount = -1;
+
+  private HeapWatcher(TileCache cache, MemoryPoolMXBean oldGen) {
+    this.cache = cache;
+    this.oldGen = oldGen;
+    long heap = Runtime.getRuntime().maxMemory();
+    this.floor = heap / 32;
+    this.ceiling = heap / 2;
+  }
+
+  /**
+   * Returns null if the JVM doesn't tell us enough to do this.
+   */
+  static HeapWatcher start(TileCache cache) {
+    MemoryPoolMXBean best = null;
+    for( var pool : ManagementFactory.getMemoryPoolMXBeans() ) {
+      if( pool.getType() != MemoryType.HEAP ||
+          !pool.isCollectionUsageThresholdSupported() )
+        continue;
+      // The old generation is the heap pool that can grow the largest.
+      if( best == null ||
+          pool.getUsage().getMax() > best.getUsage().getMax() )
+        best = pool;
+    }
+    if( best == null || best.getUsage().getMax() <= 0 )
+      return null;
+
+    var watcher = new HeapWatcher(cache, best);
+    best.setCollectionUsageThreshold(
+        (long)(best.getUsage().getMax() * HIGH_WATER));
+    ((NotificationEmitter)ManagementFactory.getMemoryMXBean())
+    .addNotificationListener((n,_) -> watcher.memoryNotification(n),
+        null, null);
+    for( GarbageCollectorMXBean gc :
+      ManagementFactory.getGarbageCollectorMXBeans() ) {
+      if( gc instanceof NotificationEmitter ne )
+        ne.addNotificationListener((n,_) -> watcher.gcNotification(n),
+            null, null);
+    }
+    return watcher;
+  }
+
+  private void memoryNotification(Notification n) {
+    if( n.getType().equals(
+        MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED) )
+      afterCollection();
+  }
+
+  private void gcNotification(Notification n) {
+    if( n.getType().equals(
+        GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION) )
+      afterCollection();
+  }
+
+  private synchronized void afterCollection() {
+    long count = 0;
+    for( var gc : ManagementFactory.getGarbageCollectorMXBeans() )
+      count += Math.max(0, gc.getCollectionCount());
+    if( count == lastCollectionCount ) return;
+    lastCollectionCount = count;
+
+    MemoryUsage usage = oldGen.getCollectionUsage();
+    if( usage == null || usage.getMax() <= 0 ) return;
+    double fill = (double)usage.getUsed() / usage.getMax();
+    long current = cache.maxBytes;
+    long wanted = current;
+    if( fill > HIGH_WATER ) {
+      wanted = Math.max(floor, current - current / 4);
+    } else if( fill < LOW_WATER &&
+        cache.usedBytes() > current - (current >> 3) ) {
+      wanted = Math.min(ceiling, current + current / 8);
+    }
+    if( wanted != current ) {
+      System.err.printf("Old generation is %d%% full after GC; "+
+          "%s tile cache to %d MB.%n", Math.round(fill * 100),
+          wanted < current ? "shrinking" : "growing", wanted >> 20);
+      cache.setMaxBytes(wanted);
+    }
+  }
+
+}
@@ -0,0 +1,132 @@
+package net.makholm.henning.mapwarper.tiles;
+
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import net.makholm.henning.mapwarper.util.KeyedLock.CleanCloser;
+import net.makholm.henning.mapwarper.util.XmlConfig;
+
+/**
+ * Keeps track of how hard we're hitting each tile server, shared
+ * between all the tilesets (several of which may use the same host).
+ *
+ * The limits are set by {@code <downloadHost>} elements in the
+ * configuration, with the nameless one applying to hosts that are not
+ * mentioned explicitly.
+ *
+ * We also keep track of intermittent failures per host. After a few in
+ * a row, requests to that host are turned away for a while (with
+ * {@link TryDownloadLater}, so the tiles are deferred by the downloader)
+ * rather than piling more load on a server that is already struggling.
+ */
+final class HostLimits {
+
+  private final XmlConfig config;
+  private final Map<String, Limiter> hosts = new LinkedHashMap<>();
+
+  HostLimits(XmlConfig config) {
+    this.config = config;
+  }
+
+  private int setting(String host, String attr, int defval) {
+    Integer got = config.integer("downloadHost", host, attr);
+    if( got == null ) got = config.integer("downloadHost", "", attr);
+    return got == null ? defval : got;
+  }
+
+  private synchronized Limiter forHost(String host) {
+    if( host == null ) host = "";
+    return hosts.computeIfAbsent(host, h -> new Limiter(
+        Math.max(1, setting(h, "maxConnections", 4)),
+        setting(h, "requestsPerSecond", 0)));
+  }
+
+  /**
+   * Block until we're allowed to start a request to the given URI.
+   * The result must be closed when the request is complete.
+   */
+  CleanCloser acquire(URI uri)
+      throws InterruptedException, TryDownloadLater {
+    var limiter = forHost(uri.getHost());
+    limiter.checkNotResting(uri.getHost());
+    return limiter.acquire();
+  }
+
+  void reportSuccess(URI uri) {
+    forHost(uri.getHost()).reportSuccess();
+  }
+
+  /** Called when a request to the host failed in a way worth retrying. */
+  void reportFailure(URI uri) {
+    forHost(uri.getHost()).reportFailure();
+  }
+
+  /** Thrown instead of even trying to contact a resting host. */
+  @SuppressWarnings("serial")
+  static final class Resting extends TryDownloadLater {
+    Resting(String msg) {
+      super(msg);
+    }
+  }
+
+  private static final int FAILURES_BEFORE_REST = 3;
+  private static final long MAX_REST_SECONDS = 600;
+
+  private static final class Limiter {
+    private final Semaphore connections;
+    private final long nanosBetweenStarts;
+    private long nextStart;
+
+    private int failuresInARow;
+    private long restUntil;
+
+    Limiter(int maxConnections, int requestsPerSecond) {
+      connections = new Semaphore(maxConnections, true);
+      nanosBetweenStarts =
+          requestsPerSecond <= 0 ? 0 : 1_000_000_000L / requestsPerSecond;
+    }
+
+    synchronized void checkNotResting(String host) throws TryDownloadLater {
+      if( failuresInARow >= FAILURES_BEFORE_REST &&
+          restUntil - System.nanoTime() > 0 )
+        throw new Resting("Giving "+host+" a rest after "+
+            failuresInARow+" failures in a row");
+    }
+
+    synchronized void reportSuccess() {
+      failuresInARow = 0;
+    }
+
+    synchronized void reportFailure() {
+      if( ++failuresInARow >= FAILURES_BEFORE_REST ) {
+        long secs = Math.min(MAX_REST_SECONDS,
+            5L << Math.min(10, failuresInARow - FAILURES_BEFORE_REST));
+        restUntil = System.nanoTime() + secs * 1_000_000_000L;
+      }
+    }
+
+    CleanCloser acquire() throws InterruptedException {
+      connections.acquire();
+      try {
+        if( nanosBetweenStarts > 0 ) {
+          long now = System.nanoTime();
+          long myStart;
+          synchronized( this ) {
+            myStart = nextStart - now > 0 ? nextStart : now;
+            nextStart = myStart + nanosBetweenStarts;
+          }
+          long wait = myStart - now;
+          if( wait > 0 )
+            Thread.sleep(wait / 1_000_000, (int)(wait % 1_000_000));
+        }
+      } catch( InterruptedException e ) {
+        connections.release();
+        throw e;
+      }
+      return connections::release;
+    }
+  }
+
+}
@@ -27,58 +27,112 @@ public abstract class HttpTileset extends DiskCachedTileset {
 
   protected final HttpClient http;
 
+  @Override
+  protected int maxParallelDownloads() {
+    return intAttr("parallelDownloads", 4);
+  }
+
   @Override
   public final void produceTileInFile(long tile, Path dest)
       throws IOException, TryDownloadLater {
-    System.err.println(" (download "+tilename(tile)+")");
+    Files.write(dest, produceTileInMemory(tile));
+  }
+
+  private static boolean isNoSuchTile(int code) {
+    return code == 204 || code == 404 || code == 410;
+  }
+
+  @Override
+  protected final byte[] produceTileInMemory(long tile)
+      throws IOException, TryDownloadLater {
+    return fetch(tile, null, null);
+  }
+
+  @Override
+  protected final byte[] refetchIfChanged(long tile, String etag,
+      String lastModified) throws IOException, TryDownloadLater {
+    return fetch(tile, etag, lastModified);
+  }
+
+  /**
+   * Returns null if the request was conditional and the server says our
+   * copy is still good.
+   */
+  private byte[] fetch(long tile, String etag, String lastModified)
+      throws IOException, TryDownloadLater {
+    boolean conditional = etag != null || lastModified != null;
+    System.err.println(" ("+(conditional ? "revalidate " : "download ")+
+        tilename(tile)+")");
     String url = tileUrl(tile);
     var uri = URI.create(url);
     var request = HttpRequest.newBuilder(uri);
     request.header("User-Agent", "Mapwarper/3.2");
+    if( etag != null ) request.header("If-None-Match", etag);
+    if( lastModified != null ) request.header("If-Modified-Since", lastModified);
     request.GET();
     finishRequest(request);
 
-    HttpResponse.BodyHandler<Path> handler = rspInfo -> {
+    HttpResponse.BodyHandler<byte[]> handler = rspInfo -> {
       if( rspInfo.statusCode() == 200 ) {
-        return HttpResponse.BodySubscribers.ofFile(dest);
+        return HttpResponse.BodySubscribers.ofByteArray();
+      } else if( rspInfo.statusCode() == 304 ||
+          isNoSuchTile(rspInfo.statusCode()) ) {
+        return HttpResponse.BodySubscribers.replacing(null);
       } else {
         System.err.println("Got "+rspInfo.statusCode()+" when fetching "+url);
         dump(System.err, rspInfo.headers());
         Path bodyFile = Paths.get("httpErrorBody");
         tryDeleteFile(bodyFile);
-        return HttpResponse.BodySubscribers.ofFile(bodyFile);
+        return HttpResponse.BodySubscribers.mapping(
+            HttpResponse.BodySubscribers.ofFile(bodyFile), _ -> null);
       }
     };
-    try {
+    try( var _ = context.hostLimits.acquire(uri) ) {
       var response = http.send(request.build(), handler);
       int code = response.statusCode();
       switch( code ) {
       case 200:
+      case 204:
+        context.hostLimits.reportSuccess(uri);
         break;
+      case 304:
+        context.hostLimits.reportSuccess(uri);
+        // The server may or may not repeat the validators
+        recordFetch(tile,
+            response.headers().firstValue("ETag").orElse(etag),
+            response.headers().firstValue("Last-Modified").orElse(lastModified));
+        return null;
+      case 404:
+      case 410:
+        context.hostLimits.reportSuccess(uri);
+        throw new NoSuchTile("Got "+code+" for "+url);
       case 500:
       case 503:
+        context.hostLimits.reportFailure(uri);
         throw new TryDownloadLater("Got HTTP response "+code);
       default:
         throw new IOException("Tile fetching failed for "+url);
       }
-      if( !Files.isRegularFile(dest) ) {
-        throw new IOException("Got 200 for "+url+" but no file!");
-      }
-      long length = Files.size(dest);
-      if( length == 0 ) {
-        throw new IOException("Got 200 for "+url+" but zero bytes!");
+      byte[] body = response.body();
+      if( body == null || body.length == 0 ) {
+        // Some servers say "nothing here" this way instead of with a 404.
+        throw new NoSuchTile("Got "+code+" for "+url+" with zero bytes");
       }
+      metrics.bytesDownloaded.add(body.length);
+      recordFetch(tile, response.headers().firstValue("ETag").orElse(null),
+          response.headers().firstValue("Last-Modified").orElse(null));
+      return body;
     } catch( InterruptedException e ) {
       throw new RuntimeException("This shouldn't happen", e);
     } catch( ConnectException e ) {
-      Files.deleteIfExists(dest);
+      context.hostLimits.reportFailure(uri);
       throw new TryDownloadLater(e);
     } catch( IOException e ) {
-      Files.deleteIfExists(dest);
       String msg = e.getMessage();
       if( msg != null ) {
         if( msg.indexOf("Connection reset") >= 0 ||
             msg.indexOf("GOAWAY received") >= 0 ) {
+          context.hostLimits.reportFailure(uri);
           throw new TryDownloadLater(e);
         }
       }
@@ -86,4 +140,4 @@ public abstract class HttpTileset extends DiskCachedTileset {
     }
   }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,72 @@
+package net.makholm.henning.mapwarper.tiles;
+
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.concurrent.Executor;
+
+/**
+ * Remembers, across sessions, which tiles the server has told us don't
+ * exist -- typically ocean or outside the coverage of the tileset -- so
+ * we don't have to ask for them again every time they come into view.
+ *
+ * Each entry is forgotten after a configurable number of days, in case
+ * the provider has extended its coverage in the meantime.
+ *
+ * On disk it is a {@link TileStamps} file in the tileset's cache
+ * directory, giving the day each tile was found missing. It is rewritten
+ * in the background after changes.
+ */
+final class NegativeCache {
+
+  private static final int MAGIC = 0x4D574E43; // "MWNC"
+
+  private final TileStamps missing;
+  private final int ttlDays;
+  private final Executor writer;
+
+  private boolean saveScheduled;
+
+  NegativeCache(Path file, int ttlDays, Executor writer) {
+    this.missing = new TileStamps(file, MAGIC);
+    this.ttlDays = ttlDays;
+    this.writer = writer;
+  }
+
+  private static int today() {
+    return (int)LocalDate.now().toEpochDay();
+  }
+
+  synchronized boolean contains(long tile) {
+    if( ttlDays <= 0 ) return false;
+    int day = missing.get(tile);
+    if( day == 0 ) return false;
+    if( today() - day < ttlDays ) return true;
+    missing.remove(tile);
+    scheduleSave();
+    return false;
+  }
+
+  synchronized void add(long tile) {
+    if( ttlDays <= 0 ) return;
+    missing.put(tile, today());
+    scheduleSave();
+  }
+
+  /** Called with the lock held */
+  private void scheduleSave() {
+    if( saveScheduled ) return;
+    saveScheduled = true;
+    writer.execute(this::save);
+  }
+
+  private void save() {
+    TileStamps.Snapshot snapshot;
+    synchronized( this ) {
+      saveScheduled = false;
+      int oldest = today() - ttlDays;
+      snapshot = missing.snapshot(day -> day > oldest);
+    }
+    snapshot.write();
+  }
+
+}
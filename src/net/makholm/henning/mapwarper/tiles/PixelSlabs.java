@@ -0,0 +1,89 @@
+package net.makholm.henning.mapwarper.tiles;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Off-heap storage for the pixels of RAM cached tiles. Memory is taken
+ * from a shared arena that lives as long as the program, and slabs that
+ * the {@link TileCache} evicts are kept on a free list for reuse by
+ * later tiles of the same size.
+ *
+ * A thread may still be reading from a tile it fetched from the cache
+ * just before that tile got evicted, so readers must {@link #pin} while
+ * they hold on to bitmaps from the cache. Each release is stamped with a
+ * new generation, and a released slab is only handed out again once no
+ * reader that pinned at or before its generation is still pinned. A
+ * reader who pins later can't have seen the slab, since it was already
+ * gone from the cache by then.
+ */
+final class PixelSlabs {
+
+  private final Arena arena = Arena.ofShared();
+
+  private final Map<Long, ArrayDeque<MemorySegment>> free =
+      new LinkedHashMap<>();
+
+  private record Released(MemorySegment slab, long generation) { }
+
+  /** In order of generation */
+  private final ArrayDeque<Released> quarantine = new ArrayDeque<>();
+
+  private long generation = 1;
+
+  /** How many readers are pinned at each generation */
+  private final TreeMap<Long, Integer> pinned = new TreeMap<>();
+
+  private long reservedBytes;
+
+  synchronized MemorySegment allocate(long bytes) {
+    var list = free.get(bytes);
+    if( list != null && !list.isEmpty() )
+      return list.removeLast();
+    reservedBytes += bytes;
+    return arena.allocate(bytes, 64);
+  }
+
+  synchronized void release(MemorySegment slab) {
+    quarantine.addLast(new Released(slab, generation++));
+    recycle();
+  }
+
+  /**
+   * Slabs released after this call won't be reused before the matching
+   * {@link #unpin}. Returns the ticket to unpin with.
+   */
+  synchronized long pin() {
+    pinned.merge(generation, 1, Integer::sum);
+    return generation;
+  }
+
+  synchronized void unpin(long ticket) {
+    pinned.computeIfPresent(ticket, (_, n) -> n == 1 ? null : n - 1);
+    recycle();
+  }
+
+  /** Called with the lock held */
+  private void recycle() {
+    long oldestPin = pinned.isEmpty() ? Long.MAX_VALUE : pinned.firstKey();
+    while( !quarantine.isEmpty() &&
+        quarantine.peekFirst().generation < oldestPin ) {
+      var slab = quarantine.removeFirst().slab;
+      free.computeIfAbsent(slab.byteSize(), _ -> new ArrayDeque<>())
+      .addLast(slab);
+    }
+  }
+
+  /**
+   * The total amount of memory we've ever gotten from the arena,
+   * including slabs that are currently free.
+   */
+  synchronized long reservedBytes() {
+    return reservedBytes;
+  }
+
+}
@@ -1,60 +1,191 @@
 package net.makholm.henning.mapwarper.tiles;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.makholm.henning.mapwarper.georaster.TileBitmap;
+import net.makholm.henning.mapwarper.georaster.TileFilter;
+import net.makholm.henning.mapwarper.util.BackgroundThread;
+import net.makholm.henning.mapwarper.util.LongHashMap;
+import net.makholm.henning.mapwarper.util.LyngHash;
+import net.makholm.henning.mapwarper.util.XmlConfig;
 
 /**
  * A shared RAM cache for tiles from all providers.
+ *
+ * Each tileset has its own index of entries keyed directly by shortcode,
+ * spread over a number of independently locked stripes, such that render
+ * threads looking up different tiles don't need to wait for each other.
+ * Eviction happens in a background thread of its own.
+ *
+ * Eviction order is GreedyDual-Size rather than plain LRU: entries are
+ * weighed by how long it took to load them, per byte they occupy, so a
+ * tile that was slow to decode stays around longer than a blank one
+ * that costs next to nothing to produce again.
  */
-public final class TileCache {
+public final class TileCache implements TileCacheMBean {
 
   // By default, use one fifth of the Java heap for tiles.
   // For some reason the pixel arrays seem to collectively use up to
   // three times their natural size, according to the heap sizes
   // measured by Runtime, so we'll need to make room for plenty
-  // of slack ...
-  public long maxBytes = Runtime.getRuntime().maxMemory() / 5;
+  // of slack ... Unless switched off, a HeapWatcher then adjusts this
+  // to what the garbage collector reports.
+  public volatile long maxBytes = Runtime.getRuntime().maxMemory() / 5;
 
-  public void setMaxBytes(long bytes) {
-    synchronized( TileCache.this ) {
-      maxBytes = bytes;
-      perhapsDiscardSomeEntries();
+  /**
+   * Non-null if tile pixels are kept off the Java heap. In that case we
+   * know exactly how much memory they use, so {@link #maxBytes} can be
+   * set to the actual budget instead of a guess.
+   */
+  private PixelSlabs slabs;
+
+  /**
+   * Non-null if evicted tiles are kept around in decoded form, so
+   * getting them back doesn't need another trip through the image
+   * decoder.
+   */
+  private DecodedTileCache decoded;
+
+  /** Non-null if we're recording lookups for later analysis. */
+  private CacheTrace trace;
+
+  void configure(XmlConfig config, Path cacheRoot) {
+    if( !isEmpty() )
+      throw new IllegalStateException("Tile cache is already in use");
+    Integer megabytes = config.integer("ramCache", "", "offHeapMegabytes");
+    if( megabytes != null && megabytes > 0 ) {
+      slabs = new PixelSlabs();
+      maxBytes = (long)megabytes << 20;
+    } else if( !"false".equals(config.string("ramCache", "", "autoSize")) ) {
+      if( HeapWatcher.start(this) == null )
+        System.err.println("Cannot watch the heap; tile cache stays at "+
+            (maxBytes >> 20)+" MB.");
     }
+    String tracefile = config.string("ramCache", "", "trace");
+    if( tracefile != null && !tracefile.isEmpty() ) {
+      try {
+        trace = new CacheTrace(Path.of(tracefile));
+      } catch( IOException e ) {
+        System.err.println("Cannot write cache trace: "+e);
+      }
+    }
+    Integer gigabytes = config.integer("decodedCache", "", "gigabytes");
+    if( gigabytes != null && gigabytes > 0 ) {
+      decoded = new DecodedTileCache((long)gigabytes << 30,
+          cacheRoot.resolve("decoded-tiles"));
+    }
+  }
+
+  boolean offHeap() {
+    return slabs != null;
+  }
+
+  long usedBytes() {
+    return totalBytes.get();
+  }
+
+  @Override
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  @Override
+  public long getUsedBytes() {
+    return totalBytes.get();
+  }
+
+  public void setMaxBytes(long bytes) {
+    maxBytes = bytes;
+    evictor.wakeIfNeeded();
   }
 
   public boolean isEmpty() {
-    synchronized( TileCache.this ) {
-      return map.isEmpty();
+    for( var index : indexes() ) {
+      for( var stripe : index.stripes ) {
+        synchronized( stripe ) {
+          if( !stripe.map.isEmpty() )
+            return false;
+        }
+      }
     }
+    return true;
+  }
+
+  /**
+   * Bitmaps from the cache may be off the Java heap, in which case their
+   * pixels can be reused for another tile once they've been evicted. So
+   * a thread that reads bitmaps from here must pin the cache while it does,
+   * and forget the bitmaps it has before unpinning. Returns the ticket to
+   * give to {@link #unpin}.
+   */
+  public long pin() {
+    return slabs == null ? 0 : slabs.pin();
+  }
+
+  public void unpin(long ticket) {
+    if( slabs != null ) slabs.unpin(ticket);
   }
 
   public TileBitmap getTile(TileSpec spec, boolean forceLoading) {
-    return getInternal(false, spec, forceLoading);
+    return getInternal(false, false, spec.tileset, spec.shortcode,
+        forceLoading);
   }
 
-  TileBitmap invalidateMissingAndGet(TileSpec spec, boolean forceLoading) {
-    return getInternal(true, spec, forceLoading);
+  /**
+   * The same as {@link #getTile(TileSpec, boolean)}, but without needing
+   * to allocate a TileSpec for the lookup.
+   */
+  public TileBitmap getTile(Tileset tileset, long shortcode,
+      boolean forceLoading) {
+    return getInternal(false, false, tileset, shortcode, forceLoading);
+  }
+
+  /**
+   * For exports and other batch work that sweeps through a lot of tiles
+   * once. A tile that has only been looked up this way is first in line
+   * for eviction, and isn't kept in the decoded cache afterwards, so the
+   * sweep doesn't push out the tiles the interactive view is using.
+   * Looking up a tile here also doesn't make it any more likely to stay.
+   */
+  public TileBitmap getTileForBatch(Tileset tileset, long shortcode,
+      boolean forceLoading) {
+    return getInternal(false, true, tileset, shortcode, forceLoading);
+  }
+
+  /** This counts as a batch lookup. */
+  TileBitmap invalidateMissingAndGet(Tileset tileset, long shortcode,
+      boolean forceLoading) {
+    return getInternal(true, true, tileset, shortcode, forceLoading);
   }
 
-  private TileBitmap getInternal(boolean invalidateMissing,
-      TileSpec spec, boolean forceLoading) {
+  private TileBitmap getInternal(boolean invalidateMissing, boolean batch,
+      Tileset tileset, long shortcode, boolean forceLoading) {
+    int hash = LyngHash.hash64to32(shortcode);
+    Stripe stripe = tileset.ramIndex.stripes[hash >>> (32 - LOG_STRIPES)];
     Entry e;
     long stamp, tryAgainStamp;
-    synchronized( TileCache.this ) {
-      e = map.get(spec);
+    boolean added = false;
+    synchronized( stripe ) {
+      e = stripe.map.get(shortcode);
       if( e == null ) {
-        if( !forceLoading )
+        if( !forceLoading ) {
+          tileset.metrics.misses.increment();
           return null;
-        perhapsDiscardSomeEntries();
-        e = new Entry(spec);
-        map.put(spec, e);
-        totalBytes += e.cost;
+        }
+        e = new Entry(tileset, shortcode, stripe);
+        e.batchOnly = batch;
+        stripe.map.put(shortcode, e);
+        added = true;
       }
 
-      e.lruStamp = stamp = stampcounter++;
+      e.lruStamp = stamp = stampcounter.getAndIncrement();
+      if( !batch ) e.batchOnly = false;
+      if( e.batchOnly || !batch ) reprioritize(e);
       if( invalidateMissing )
         e.tryAgainStamp = tryAgainStamp = stamp;
       else
@@ -62,61 +193,198 @@ public final class TileCache {
 
       if( !forceLoading ||
           e.bitmapGlobal != null ||
-          e.failedStampGlobal >= tryAgainStamp )
+          e.failedStampGlobal >= tryAgainStamp ) {
+        if( trace != null && forceLoading )
+          trace.record(tileset, shortcode, e.cost, e.loadNanos);
+        (e.bitmapGlobal != null ? tileset.metrics.hits
+            : tileset.metrics.misses).increment();
         return e.bitmapGlobal;
+      }
 
       e.loadingThreadsCount++;
     }
+    tileset.metrics.misses.increment();
+    if( added )
+      addBytes(e.cost);
     TileBitmap result;
     boolean triedLoading = false;
+    long loadNanos = 0;
     synchronized( e ) {
       if( e.bitmapLocal != null ) {
         result = e.bitmapLocal;
       } else if( e.failedStampLocal >= tryAgainStamp ) {
         result = null;
       } else {
+        var event = new TileMetrics.LoadEvent();
+        event.begin();
+        long loadStart = System.nanoTime();
         try {
-          result = spec.tileset.loadTile(e.spec.shortcode);
+          result = decoded == null ? null
+              : decoded.get(tileset, shortcode, slabs);
+          if( result == null )
+            result = tileset.loadTile(shortcode);
+          if( result != null && result.numPixels > 1 && slabs != null &&
+              result.slab() == null ) {
+            var slab = slabs.allocate(TileBitmap.bytesFor(result.numPixels));
+            result = result.copyToSlab(slab);
+          }
         } catch( IOException ex ) {
-          System.err.println("Failed to load "+spec+": "+ex);
+          System.err.println("Failed to load "+tileset.tilename(shortcode)+
+              ": "+ex);
           // This is not bad enough to schedule an abort for; perhaps
           // re-downloading will fix it after all.
           result = null;
         }
+        loadNanos = System.nanoTime() - loadStart;
+        tileset.metrics.loadAttempt(shortcode, result != null, loadNanos,
+            event);
         e.bitmapLocal = result;
         triedLoading = true;
         if( result == null && stamp > e.failedStampLocal )
           e.failedStampLocal = stamp;
       }
     }
-    synchronized( TileCache.this ) {
+    long bitmapSize = 0;
+    synchronized( stripe ) {
       e.loadingThreadsCount--;
       if( triedLoading ) {
-        if( result != null ) {
+        if( stripe.map.get(shortcode) != e ) {
+          // The tile was invalidated while we loaded it, perhaps from the
+          // old file. Our caller may use what we got while it's pinned,
+          // but it mustn't stay.
+          if( result != null && result.slab() != null )
+            slabs.release(result.slab());
+        } else if( result != null ) {
           e.bitmapGlobal = result;
-          long bitmapSize = 4 * result.numPixels;
+          bitmapSize = TileBitmap.bytesFor(result.numPixels);
           e.cost += bitmapSize;
-          totalBytes += bitmapSize;
-          perhapsDiscardSomeEntries();
+          e.loadNanos = loadNanos;
+          reprioritize(e);
         } else {
           if( stamp > e.failedStampGlobal )
             e.failedStampGlobal = stamp;
         }
       }
+      if( trace != null )
+        trace.record(tileset, shortcode, e.cost, e.loadNanos);
+    }
+    if( bitmapSize != 0 )
+      addBytes(bitmapSize);
+    return result;
+  }
+
+  /**
+   * A {@link TileFilter filtered} version of a tile that is already in the
+   * cache, or null if it isn't. The caller must be {@link #pin pinned}. The
+   * filtered
+   * bitmap is made the first time it is asked for and then kept with the
+   * tile, counting towards its size, so it is evicted along with it.
+   */
+  public TileBitmap getFiltered(Tileset tileset, long shortcode, int key) {
+    int hash = LyngHash.hash64to32(shortcode);
+    Stripe stripe = tileset.ramIndex.stripes[hash >>> (32 - LOG_STRIPES)];
+    TileBitmap source;
+    synchronized( stripe ) {
+      Entry e = stripe.map.get(shortcode);
+      if( e == null || e.bitmapGlobal == null ) return null;
+      if( e.filtered != null && e.filtered[key] != null )
+        return e.filtered[key];
+      source = e.bitmapGlobal;
     }
+    // Filtering takes a while, so do it without the lock. If two threads
+    // race to make the same filter, the first one to finish wins.
+    TileBitmap result = TileFilter.apply(source, key);
+    if( result == source ) return result;
+    long bytes = TileBitmap.bytesFor(result.numPixels);
+    synchronized( stripe ) {
+      Entry e = stripe.map.get(shortcode);
+      // If the tile was evicted meanwhile, the caller can still use the
+      // filter while pinned, but there's nowhere to keep it.
+      if( e == null || e.bitmapGlobal != source ) return result;
+      if( e.filtered == null ) e.filtered = new TileBitmap[TileFilter.KEYS];
+      if( e.filtered[key] != null ) return e.filtered[key];
+      e.filtered[key] = result;
+      e.cost += bytes;
+      reprioritize(e);
+    }
+    addBytes(bytes);
     return result;
   }
+
+  /**
+   * GreedyDual-Size: what it would cost to load the entry again, per byte
+   * it takes up, on top of the priority of the last entry we evicted.
+   * Each use lifts an entry back above everything that has been evicted
+   * so far, so an expensive tile can go unused for longer than a cheap
+   * one before its turn comes, but not forever.
+   *
+   * Called with the stripe lock held.
+   */
+  private void reprioritize(Entry e) {
+    if( e.batchOnly )
+      e.priority = inflation;
+    else
+      e.priority = evictionPriority(inflation, e.loadNanos, e.cost);
+  }
+
+  static double evictionPriority(double inflation, long loadNanos,
+      long bytes) {
+    return inflation + (double)loadNanos / bytes;
+  }
+
+  private void addBytes(long bytes) {
+    long total = totalBytes.addAndGet(bytes);
+    long max = maxBytes;
+    if( total >= max ) {
+      if( total - max > (max >> 2) ) {
+        // The evictor is falling far behind; lend it a hand rather than
+        // let the cache grow without bounds.
+        evictionRound(max, true);
+      } else {
+        evictor.wakeIfNeeded();
+      }
+    }
+  }
+
   // -------------------------------------------------------------------------
 
-  private long stampcounter = 1;
-  private long totalBytes;
+  private static final int LOG_STRIPES = 5;
 
-  private LinkedHashMap<TileSpec, Entry> map = new LinkedHashMap<>();
+  private final AtomicLong stampcounter = new AtomicLong(1);
+  private final AtomicLong totalBytes = new AtomicLong();
 
-  private Entry[] evictionCandidates = new Entry[0];
-  private int nextToEvict = 0;
+  private final List<Index> indexes = new ArrayList<>();
 
-  private long highestEvictableStamp;
+  /**
+   * Each tileset owns one of these, so lookups can go directly from
+   * the shortcode to an entry without hashing the tileset too.
+   */
+  static final class Index {
+    private final Stripe[] stripes = new Stripe[1 << LOG_STRIPES];
+
+    private Index() {
+      for( int i=0; i<stripes.length; i++ )
+        stripes[i] = new Stripe();
+    }
+  }
+
+  Index newIndex() {
+    var index = new Index();
+    synchronized( indexes ) {
+      indexes.add(index);
+    }
+    return index;
+  }
+
+  private Index[] indexes() {
+    synchronized( indexes ) {
+      return indexes.toArray(new Index[indexes.size()]);
+    }
+  }
+
+  private static final class Stripe {
+    final LongHashMap<Entry> map = new LongHashMap<>();
+  }
 
   /**
    * The entry objects serve both to store RAM cached tiles themselves,
@@ -124,16 +392,24 @@ public final class TileCache {
    * each tile with respect to each other.
    */
   private static final class Entry {
-    final TileSpec spec;
+    final Tileset tileset;
+    final long shortcode;
+    final Stripe stripe;
 
-    Entry(TileSpec spec) {
-      this.spec = spec;
+    Entry(Tileset tileset, long shortcode, Stripe stripe) {
+      this.tileset = tileset;
+      this.shortcode = shortcode;
+      this.stripe = stripe;
     }
 
-    // These fields belong to the TileCache lock:
+    // These fields belong to the lock on the entry's stripe:
     long lruStamp;
     long cost = 100;
+    long loadNanos;
+    double priority;
+    boolean batchOnly;
     TileBitmap bitmapGlobal;
+    TileBitmap[] filtered;
     long tryAgainStamp;
     long failedStampGlobal = -1;
     int loadingThreadsCount;
@@ -141,65 +417,203 @@ public final class TileCache {
     // These fields belong to the lock on the Entry itself:
     TileBitmap bitmapLocal;
     long failedStampLocal = -1;
+
+    // This belongs to the eviction lock
+    double sortPriority;
   }
 
-  public synchronized void clear() {
-    long savedMax = maxBytes;
-    maxBytes=1;
-    perhapsDiscardSomeEntries();
-    maxBytes = savedMax;
+  /**
+   * Forget one tile, here and in the decoded cache, because the disk
+   * cache now has a newer version of it. Threads that are pinned may go
+   * on using the old bitmap.
+   */
+  void invalidate(Tileset tileset, long shortcode) {
+    int hash = LyngHash.hash64to32(shortcode);
+    Stripe stripe = tileset.ramIndex.stripes[hash >>> (32 - LOG_STRIPES)];
+    long freed = 0;
+    // Under the eviction lock, so an eviction round can't spill the old
+    // bitmap to the decoded cache after we've removed it from there.
+    synchronized( evictionLock ) {
+      synchronized( stripe ) {
+        Entry e = stripe.map.remove(shortcode);
+        if( e != null ) {
+          if( e.bitmapGlobal != null && e.bitmapGlobal.slab() != null )
+            slabs.release(e.bitmapGlobal.slab());
+          freed = e.cost;
+        }
+      }
+      totalBytes.addAndGet(-freed);
+      if( decoded != null )
+        decoded.remove(tileset, shortcode);
+    }
+  }
+
+  /**
+   * Forget everything, including the decoded tiles behind us, such that
+   * tiles will be loaded afresh from the disk cache.
+   */
+  public void clear() {
+    evictionRound(1, false);
+    if( decoded != null )
+      decoded.clear();
   }
 
-  /** Called with the global lock held */
-  private void perhapsDiscardSomeEntries() {
-    if( totalBytes < maxBytes )
-      return;
-    System.err.println("Evicting some tiles, since "+totalBytes+
-        " used, and the limit is "+maxBytes);
-    long target = maxBytes - (maxBytes >> 4);
+  // -------------------------------------------------------------------------
+
+  private final Object evictionLock = new Object();
+
+  private Entry[] evictionCandidates = new Entry[0];
+  private int nextToEvict = 0;
+
+  private long highestEvictableStamp;
+
+  /**
+   * The priority of the latest entry to be evicted. Written with the
+   * eviction lock held.
+   */
+  private volatile double inflation;
+
+  private final Evictor evictor = new Evictor();
+
+  private class Evictor extends BackgroundThread {
+    private boolean startedYet;
+    private boolean wanted;
+
+    Evictor() {
+      super("Tile cache evictor");
+    }
+
+    synchronized void wakeIfNeeded() {
+      if( totalBytes.get() < maxBytes )
+        return;
+      wanted = true;
+      if( startedYet ) {
+        notify();
+      } else {
+        start();
+        startedYet = true;
+      }
+    }
+
+    @Override
+    public void run() {
+      for(;;) {
+        synchronized( this ) {
+          while( !wanted ) {
+            try {
+              wait();
+            } catch( InterruptedException e ) {
+              scheduleAbort(e, null);
+              return;
+            }
+          }
+          wanted = false;
+        }
+        evictionRound(maxBytes, true);
+      }
+    }
+  }
+
+  /** Called with no locks held */
+  private void evictionRound(long limit, boolean spill) {
+    synchronized( evictionLock ) {
+      if( totalBytes.get() < limit )
+        return;
+      // Pinned, so the slabs we release stay intact until we've spilled
+      // them to the decoded cache.
+      long pin = pin();
+      try {
+        evictSome(limit, spill);
+      } finally {
+        unpin(pin);
+      }
+    }
+  }
+
+  /** Called with the eviction lock held */
+  private void evictSome(long limit, boolean spill) {
+    System.err.println("Evicting some tiles, since "+totalBytes.get()+
+        " used, and the limit is "+limit);
+    long target = limit - (limit >> 4);
     int checkedCandidates = 0;
     int evictedCandidates = 0;
     int evictedHadBitmap = 0;
-    boolean rebuiltListOnce = false;
-    while(totalBytes > target) {
-      if( nextToEvict >= evictionCandidates.length ) {
-        if( rebuiltListOnce || map.isEmpty() ) break;
-        rebuildCandidateList();
-        rebuiltListOnce = true;
-      }
-
+    // Unlike LRU stamps, priorities don't grow with age, so entries that
+    // have arrived since the last round may belong ahead of whatever was
+    // left of the old list. Start afresh each time.
+    rebuildCandidateList();
+    List<Entry> toSpill = new ArrayList<>();
+    while( totalBytes.get() > target &&
+        nextToEvict < evictionCandidates.length ) {
       Entry e = evictionCandidates[nextToEvict];
       evictionCandidates[nextToEvict] = null;
       nextToEvict++;
 
       checkedCandidates++ ;
-      if( e.lruStamp > highestEvictableStamp ) {
-        // This entry has become more recently used; skip it
-      } else if( e.loadingThreadsCount > 0 ) {
-        // There's a thread elsewhere working on this entry.
-        // Even if is is not recently used (huh, what's up with that?)
-        // it's unsafe to forget it just now.
-      } else {
-        if( e.bitmapGlobal != null ) evictedHadBitmap++;
-        evictedCandidates++;
-        map.remove(e.spec);
-        totalBytes -= e.cost;
+      Stripe stripe = e.stripe;
+      long freed = 0;
+      synchronized( stripe ) {
+        if( e.lruStamp > highestEvictableStamp ) {
+          // This entry has become more recently used; skip it
+        } else if( e.loadingThreadsCount > 0 ) {
+          // There's a thread elsewhere working on this entry.
+          // Even if is is not recently used (huh, what's up with that?)
+          // it's unsafe to forget it just now.
+        } else if( stripe.map.get(e.shortcode) != e ) {
+          // Already gone
+        } else {
+          if( e.bitmapGlobal != null ) {
+            evictedHadBitmap++;
+            if( spill && decoded != null && !e.batchOnly )
+              toSpill.add(e);
+            if( e.bitmapGlobal.slab() != null )
+              slabs.release(e.bitmapGlobal.slab());
+          }
+          evictedCandidates++;
+          stripe.map.remove(e.shortcode);
+          e.tileset.metrics.evictions.increment();
+          freed = e.cost;
+          if( e.sortPriority > inflation )
+            inflation = e.sortPriority;
+        }
       }
+      totalBytes.addAndGet(-freed);
     }
+    for( Entry e : toSpill )
+      decoded.put(e.tileset, e.shortcode, e.bitmapGlobal);
     System.err.println("  After evicting "+evictedCandidates+" of "+
         checkedCandidates+" candidates, ("+evictedHadBitmap+" of which "+
-        "had a bitmap), we're using "+totalBytes+" bytes. " +
-        map.size() + " tiles still cached.");
+        "had a bitmap), we're using "+totalBytes.get()+" bytes.");
+    if( slabs != null )
+      System.err.println("  Off-heap tile memory reserved: "+
+          slabs.reservedBytes()+" bytes.");
   }
 
-  /** Called with the global lock held */
+  /** Called with the eviction lock held */
   private void rebuildCandidateList() {
-    int size = map.size();
-    evictionCandidates = map.values().toArray(new Entry[size]);
+    highestEvictableStamp = stampcounter.getAndIncrement();
+    int size = 0;
+    List<Entry[]> perStripe = new ArrayList<>();
+    for( var index : indexes() ) {
+      for( var stripe : index.stripes ) {
+        synchronized( stripe ) {
+          var entries = stripe.map.values().toArray(new Entry[0]);
+          for( var e : entries )
+            e.sortPriority = e.priority;
+          perStripe.add(entries);
+          size += entries.length;
+        }
+      }
+    }
+    evictionCandidates = new Entry[size];
+    int pos = 0;
+    for( var entries : perStripe ) {
+      System.arraycopy(entries, 0, evictionCandidates, pos, entries.length);
+      pos += entries.length;
+    }
     Arrays.sort(evictionCandidates, (a,b)
-        -> Long.compare(a.lruStamp, b.lruStamp));
-    highestEvictableStamp = stampcounter++;
+        -> Double.compare(a.sortPriority, b.sortPriority));
     nextToEvict = 0;
   }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,182 @@
+package net.makholm.henning.mapwarper.tiles;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.w3c.dom.Element;
+
+import net.makholm.henning.mapwarper.geometry.Point;
+import net.makholm.henning.mapwarper.georaster.PixelAddresser;
+import net.makholm.henning.mapwarper.georaster.TileBitmap;
+import net.makholm.henning.mapwarper.georaster.WebMercatorAddresser;
+import net.makholm.henning.mapwarper.util.NiceError;
+import net.makholm.henning.mapwarper.util.Regexer;
+import net.makholm.henning.mapwarper.util.XmlConfig;
+
+/**
+ * A stress test of the RAM cache: any number of threads look up tiles
+ * from a synthetic tileset the way render threads do, with the budget
+ * set such that a fair share of the lookups miss and cause eviction.
+ * Every pixel that's read is checked against the tile it should belong
+ * to, which catches off-heap slabs being reused while still pinned.
+ *
+ * Prints lookups per second for 1, 2, 4, ... threads up to the maximum.
+ */
+public final class TileCacheBenchmark {
+
+  private static final int TILE_PIXELS = 256 * 256;
+
+  private int maxThreads = Runtime.getRuntime().availableProcessors();
+  private double seconds = 2;
+  private int workingSet = 2000;
+  private int cachedPercent = 80;
+  private int lookupsPerPin = 256;
+
+  private final TileCache cache;
+  private final StressTiles tiles;
+
+  private TileCacheBenchmark(TileContext ctx) {
+    this.cache = ctx.ramCache;
+    this.tiles = new StressTiles(ctx);
+  }
+
+  public static void run(TileContext ctx, Deque<String> words,
+      PrintStream out) {
+    var bench = new TileCacheBenchmark(ctx);
+    for( String word : words ) {
+      Regexer re = new Regexer(word);
+      if( re.match("threads=" + Regexer.cNat) )
+        bench.maxThreads = Math.max(1, re.igroup(1));
+      else if( re.match("seconds=" + Regexer.cUnsigned) )
+        bench.seconds = Double.parseDouble(re.group(1));
+      else if( re.match("tiles=" + Regexer.cNat) )
+        bench.workingSet = Math.max(1, re.igroup(1));
+      else if( re.match("cached=" + Regexer.cNat) )
+        bench.cachedPercent = Math.clamp(re.igroup(1), 1, 100);
+      else
+        throw NiceError.of("Unrecognized tilecache benchmark option '%s'",
+            word);
+    }
+    bench.run(out);
+  }
+
+  private void run(PrintStream out) {
+    long budget = (long)workingSet * cachedPercent / 100 *
+        TileBitmap.bytesFor(TILE_PIXELS);
+    cache.setMaxBytes(budget);
+    out.printf(Locale.ROOT, "RAM cache stress: %d tiles, budget %d MB "+
+        "(%d%% of them), pixels %s the Java heap%n", workingSet,
+        budget >> 20, cachedPercent, cache.offHeap() ? "off" : "on");
+
+    // Warm up the JIT and fill the cache before measuring.
+    measure(maxThreads, Math.min(seconds, 1));
+
+    double single = 0;
+    for( int threads = 1; ; threads = Math.min(threads * 2, maxThreads) ) {
+      double rate = measure(threads, seconds);
+      if( threads == 1 ) single = rate;
+      out.printf(Locale.ROOT, "%3d threads: %12.0f lookups/s  "+
+          "(%.2fx one thread)%n", threads, rate, rate / single);
+      if( threads == maxThreads ) break;
+    }
+    long wrong = tiles.wrongPixels.get();
+    out.println(wrong == 0 ? "All pixels read were from the right tile." :
+      "FAILED: "+wrong+" pixels were read from the wrong tile!");
+  }
+
+  /** Returns lookups per second over all the threads. */
+  private double measure(int threads, double seconds) {
+    long deadline = System.nanoTime() + (long)(seconds * 1e9);
+    long[] counts = new long[threads];
+    var done = new CountDownLatch(threads);
+    for( int t = 0; t < threads; t++ ) {
+      int me = t;
+      Thread thread = new Thread(() -> {
+        counts[me] = lookUpUntil(deadline);
+        done.countDown();
+      }, "Cache stress #"+t);
+      thread.setDaemon(true);
+      thread.start();
+    }
+    long start = System.nanoTime();
+    try {
+      done.await();
+    } catch( InterruptedException e ) {
+      throw NiceError.of("Interrupted");
+    }
+    double elapsed = (System.nanoTime() - start) / 1e9;
+    return Arrays.stream(counts).sum() / elapsed;
+  }
+
+  private long lookUpUntil(long deadline) {
+    var random = ThreadLocalRandom.current();
+    long count = 0;
+    while( System.nanoTime() < deadline ) {
+      long pin = cache.pin();
+      try {
+        for( int i = 0; i < lookupsPerPin; i++ ) {
+          long shortcode = 1 + random.nextInt(workingSet);
+          var bitmap = cache.getTile(tiles, shortcode, true);
+          tiles.check(shortcode, bitmap, random.nextInt(TILE_PIXELS));
+        }
+      } finally {
+        cache.unpin(pin);
+      }
+      count += lookupsPerPin;
+    }
+    return count;
+  }
+
+  /** Each tile is filled with a pixel value made from its shortcode. */
+  private static final class StressTiles extends Tileset {
+    final AtomicLong wrongPixels = new AtomicLong();
+
+    StressTiles(TileContext ctx) {
+      super(ctx, "cachestress", syntheticXml());
+    }
+
+    private static Element syntheticXml() {
+      Element elt = XmlConfig.freshElement("tileset");
+      elt.setAttribute("name", "cachestress");
+      elt.setAttribute("desc", "Synthetic tiles for stress testing");
+      return elt;
+    }
+
+    static int pixelFor(long shortcode) {
+      return 0xFF000000 | (int)(shortcode * 0x9E3779B1L) >>> 8;
+    }
+
+    void check(long shortcode, TileBitmap bitmap, int index) {
+      if( bitmap == null || bitmap.pixelByIndex(index) != pixelFor(shortcode) )
+        wrongPixels.incrementAndGet();
+    }
+
+    @Override
+    public PixelAddresser makeAddresser(int zoom, Point p) {
+      return new WebMercatorAddresser(zoom, 8);
+    }
+
+    @Override
+    protected TileBitmap loadTile(long tile) {
+      int[] pixels = new int[TILE_PIXELS];
+      Arrays.fill(pixels, pixelFor(tile));
+      return new TileBitmap(pixels);
+    }
+
+    @Override
+    protected void downloadTile(long tile, DownloadCallback callback) {
+      // Everything can be loaded
+    }
+
+    @Override
+    public String tilename(long tile) {
+      return "cachestress:"+tile;
+    }
+  }
+
+}
@@ -0,0 +1,12 @@
+package net.makholm.henning.mapwarper.tiles;
+
+/**
+ * What the {@link TileCache} shows through JMX. The per-tileset
+ * counters are in {@link TileMetricsMBean}.
+ */
+public interface TileCacheMBean {
+
+  long getMaxBytes();
+  long getUsedBytes();
+
+}
@@ -1,10 +1,16 @@
 package net.makholm.henning.mapwarper.tiles;
 
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
 import java.net.http.HttpClient;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.Executor;
 
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
 import net.makholm.henning.mapwarper.geometry.Point;
 import net.makholm.henning.mapwarper.georaster.Coords;
 import net.makholm.henning.mapwarper.util.BackgroundThread;
@@ -20,18 +26,83 @@ public class TileContext {
   public final Tileset nomapTileset;
 
   public final TileCache ramCache = new TileCache();
+  final HostLimits hostLimits;
 
   public volatile Point downloadFocus = Point.at(Coords.EARTH_SIZE/2, Coords.EARTH_SIZE/2);
 
   public final Executor progressiveLoader =
       BackgroundThread.executor("Progressive tile loader");
 
+  /**
+   * Loads tiles from the disk cache for the renderers, so they don't
+   * have to wait for the disk themselves.
+   */
+  public final Executor tileLoader;
+
+  /** Writes freshly downloaded tiles to the disk cache. */
+  final Executor diskWriter = BackgroundThread.executor("Tile cache writer");
+
+  final TileRefresher refresher = new TileRefresher(tilesets);
+
+  final DiskCacheTrimmer diskTrimmer;
+
   public TileContext(XmlConfig config, HttpClient http) {
     this.config = config;
     this.caches = new CacheDirLocator(config);
     this.http = http;
+    this.hostLimits = new HostLimits(config);
+    this.diskTrimmer = new DiskCacheTrimmer(tilesets, config);
+    Integer loaders = config.integer("tileLoading", "", "threads");
+    this.tileLoader = BackgroundThread.pool("Tile loader",
+        loaders == null || loaders < 1 ? 4 : loaders);
+    ramCache.configure(config, caches.root);
     this.nomapTileset = new NomapTiles(this);
     tilesets.put(nomapTileset.name, nomapTileset);
+    nomapTileset.metrics.register();
+    registerCacheMetrics();
+    Integer dumpSeconds = config.integer("metrics", "", "dumpSeconds");
+    if( dumpSeconds != null && dumpSeconds > 0 )
+      startMetricsDump(dumpSeconds);
+  }
+
+  private void registerCacheMetrics() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(ramCache,
+          new ObjectName("net.makholm.henning.mapwarper:type=TileCache"));
+    } catch( InstanceAlreadyExistsException e ) {
+      // Another TileContext in the same JVM got there first. Never mind.
+    } catch( JMException e ) {
+      System.err.println("Could not register tile cache metrics: "+e);
+    }
+  }
+
+  private void startMetricsDump(int seconds) {
+    new BackgroundThread("Tile metrics dump") {
+      @Override
+      public void run() {
+        for(;;) {
+          try {
+            Thread.sleep(seconds * 1000L);
+          } catch( InterruptedException e ) {
+            return;
+          }
+          dumpMetrics(System.err);
+        }
+      }
+    }.start();
+  }
+
+  public void dumpMetrics(PrintStream out) {
+    out.println("Tile metrics: RAM cache using "+
+        (ramCache.getUsedBytes() >> 20)+" of "+
+        (ramCache.getMaxBytes() >> 20)+" MB");
+    Tileset[] all;
+    synchronized( tilesets ) {
+      all = tilesets.values().toArray(new Tileset[0]);
+    }
+    for( Tileset t : all )
+      if( !t.metrics.isIdle() )
+        t.metrics.dump(out);
   }
 
 }
@@ -1,32 +1,54 @@
 package net.makholm.henning.mapwarper.tiles;
 
 import java.io.IOException;
-import java.util.LinkedHashMap;
+import java.util.ArrayList;
 import java.util.LinkedHashSet;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
 import java.util.function.Consumer;
 
 import net.makholm.henning.mapwarper.geometry.Point;
+import net.makholm.henning.mapwarper.georaster.Coords;
+import net.makholm.henning.mapwarper.georaster.PixelAddresser;
 import net.makholm.henning.mapwarper.georaster.TileBitmap;
 import net.makholm.henning.mapwarper.util.BackgroundThread;
 import net.makholm.henning.mapwarper.util.BadError;
+import net.makholm.henning.mapwarper.util.LongHashMap;
 
-class TileDownloader extends BackgroundThread
-implements Tileset.DownloadCallback {
+/**
+ * Each tileset has one of these to keep track of which tiles are wanted,
+ * and a small pool of worker threads that download them in order of
+ * priority, at most {@link Tileset#maxParallelDownloads()} at a time.
+ *
+ * A tile whose download fails intermittently is deferred, with its own
+ * exponential backoff, while the rest of the queue keeps moving. If most
+ * recent downloads fail, a {@link CircuitBreaker} pauses the tileset.
+ */
+class TileDownloader implements Tileset.DownloadCallback {
 
   final Tileset tileset;
   final TileContext context;
   final TileCache cache;
 
   private boolean startedYet;
-  private final Map<TileSpec, Set<Consumer<TileBitmap>>> queue =
-      new LinkedHashMap<>();
-  private final Map<TileSpec, Set<Consumer<TileBitmap>>> watchers =
-      new LinkedHashMap<>();
+  private final DownloadQueue queue = new DownloadQueue();
+  // These are keyed by shortcode; the tileset is always ours.
+  private final LongHashMap<Set<Consumer<TileBitmap>>> watchers =
+      new LongHashMap<>();
+  private final LongHashMap<Worker> inFlight = new LongHashMap<>();
+  private final List<DownloadQueue.Request> deferred = new ArrayList<>();
+  private final CircuitBreaker breaker = new CircuitBreaker();
+
+  /**
+   * The priorities in the queue are computed relative to this. It gets
+   * replaced, and the queue re-keyed, when the download focus moves
+   * appreciably or the tileset's target zoom changes.
+   */
+  private PixelAddresser priorityAddresser;
+  private Point priorityFocus;
+  private int priorityZoom;
 
   TileDownloader(Tileset tileset) {
-    super("Tile downloader "+tileset.name);
     this.tileset = tileset;
     this.context = tileset.context;
     this.cache = context.ramCache;
@@ -36,128 +58,332 @@ implements Tileset.DownloadCallback {
       TileSpec spec, Consumer<TileBitmap> whenDone) {
     if( spec.tileset != tileset )
       throw BadError.of("Tileset mismatch, %s vs %s", spec.tileset, tileset);
-    var map = eager ? queue : watchers;
+    long tile = spec.shortcode;
     synchronized( this ) {
-      Set<Consumer<TileBitmap>> subscribers =
-          map.computeIfAbsent(spec, _ -> new LinkedHashSet<>());
-      subscribers.add(whenDone);
       if( eager ) {
-        if( startedYet ) {
-          notify();
+        boolean knownMissing = tileset.isKnownMissing(tile);
+        var request = queue.getOrCreate(tile);
+        request.subscribers.add(whenDone);
+        if( knownMissing ) {
+          // No need to ask the server again; loading will produce a
+          // placeholder now. If it doesn't after all, because the
+          // tile has been forgotten as missing meanwhile, it will be
+          // queued for downloading then.
+          reloadAndDeliver(tile, true);
         } else {
-          start();
-          startedYet = true;
+          offerForDownload(request);
         }
+      } else {
+        watchers.computeIfAbsent(tile, _ -> new LinkedHashSet<>())
+        .add(whenDone);
       }
     }
-    return () -> {
-      synchronized( TileDownloader.this ) {
-        Set<Consumer<TileBitmap>> subscribers = map.get(spec);
-        if( subscribers != null ) {
-          subscribers.remove(whenDone);
-          if( subscribers.isEmpty() ) map.remove(spec);
-        }
+    return () -> unsubscribe(eager, tile, whenDone);
+  }
+
+  /** Called with the lock held */
+  private void offerForDownload(DownloadQueue.Request request) {
+    if( !request.inHeap() && !request.deferred &&
+        !inFlight.containsKey(request.tile) ) {
+      refreshPriorities();
+      queue.offer(request, priorityAddresser.getDownloadPriority(request.tile));
+    }
+    if( startedYet ) {
+      notify();
+    } else {
+      int n = Math.max(1, tileset.maxParallelDownloads());
+      for( int i=1; i<=n; i++ )
+        new Worker(n == 1 ? "" : " #"+i).start();
+      startedYet = true;
+    }
+  }
+
+  private synchronized void unsubscribe(boolean eager, long tile,
+      Consumer<TileBitmap> whenDone) {
+    if( eager ) {
+      var request = queue.get(tile);
+      if( request != null ) {
+        request.subscribers.remove(whenDone);
+        if( request.subscribers.isEmpty() ) queue.remove(tile);
       }
-    };
+    } else {
+      Set<Consumer<TileBitmap>> subscribers = watchers.get(tile);
+      if( subscribers != null ) {
+        subscribers.remove(whenDone);
+        if( subscribers.isEmpty() ) watchers.remove(tile);
+      }
+    }
   }
 
-  @Override
-  public void run() {
-    int backoffSecs = 0;
+  /** Called with the lock held */
+  private void refreshPriorities() {
+    Point focus = context.downloadFocus;
+    int zoom = tileset.guiTargetZoom;
+    if( priorityAddresser != null && zoom == priorityZoom ) {
+      if( focus == priorityFocus )
+        return;
+      // Don't bother re-keying for movements of less than a quarter tile
+      double slack = Coords.EARTH_SIZE >> Math.min(Coords.BITS, zoom+2);
+      if( focus.sqDist(priorityFocus) < slack*slack )
+        return;
+    }
+    priorityAddresser = tileset.makeAddresser(zoom, focus);
+    priorityAddresser.locate(focus);
+    priorityFocus = focus;
+    priorityZoom = zoom;
+    queue.rekey(r -> priorityAddresser.getDownloadPriority(r.tile));
+  }
+
+  /**
+   * Wait for there to be something to download that no other worker is
+   * already downloading, and claim the most urgent such tile.
+   */
+  private synchronized long claimNextTile(Worker worker)
+      throws InterruptedException {
     for(;;) {
-      TileSpec toDownload = null;
-      synchronized(this) {
-        while( queue.isEmpty() ) {
-          try {
-            wait();
-          } catch (InterruptedException e) {
-            scheduleAbort(e, null);
-            return;
-          }
-        }
-        long best = Long.MAX_VALUE;
-        Point focus = context.downloadFocus;
-        var addrr = tileset.makeAddresser(tileset.guiTargetZoom, focus);
-        addrr.locate(focus);
-        for( TileSpec spec : queue.keySet() ) {
-          long priority = addrr.getDownloadPriority(spec.shortcode);
-          if( priority <= best ) {
-            toDownload = spec;
-            best = priority;
-          }
+      long now = System.nanoTime();
+      long wait = promoteDeferred(now);
+      long breakerWait = breaker.delayBeforeNext(now);
+      if( breakerWait == 0 && !queue.heapIsEmpty() )
+        break;
+      wait = Math.min(wait, breakerWait == 0 ? Long.MAX_VALUE : breakerWait);
+      if( wait == Long.MAX_VALUE )
+        wait();
+      else
+        wait(wait / 1_000_000 + 1);
+    }
+    refreshPriorities();
+    long toDownload = queue.pollHeap().tile;
+    inFlight.put(toDownload, worker);
+    worker.isTrial = breaker.starting();
+    return toDownload;
+  }
+
+  /**
+   * Put deferred tiles whose time has come back in the heap. Returns the
+   * number of nanoseconds until the next one is due, if any.
+   * Called with the lock held.
+   */
+  private long promoteDeferred(long now) {
+    long wait = Long.MAX_VALUE;
+    for( var it = deferred.iterator(); it.hasNext(); ) {
+      var request = it.next();
+      if( queue.get(request.tile) != request ) {
+        // Nobody wants it anymore
+        it.remove();
+        request.deferred = false;
+      } else if( request.retryAt - now <= 0 ) {
+        it.remove();
+        request.deferred = false;
+        refreshPriorities();
+        queue.offer(request,
+            priorityAddresser.getDownloadPriority(request.tile));
+      } else {
+        wait = Math.min(wait, request.retryAt - now);
+      }
+    }
+    return wait;
+  }
+
+  private synchronized void releaseTile(long tile, Worker worker) {
+    inFlight.remove(tile);
+    if( worker.isTrial ) {
+      // We didn't get to download anything after all, so someone else
+      // will have to make the trial.
+      breaker.abandonTrial();
+      worker.isTrial = false;
+      notifyAll();
+    }
+    // If there's still demand for the tile (because the download failed
+    // or someone asked for it again in the meantime), it goes back in
+    // line -- possibly after waiting out a backoff.
+    var request = queue.get(tile);
+    if( request != null && !request.inHeap() && !request.deferred ) {
+      if( request.retryAt - System.nanoTime() > 0 ) {
+        request.deferred = true;
+        deferred.add(request);
+        notifyAll();
+      } else {
+        refreshPriorities();
+        queue.offer(request, priorityAddresser.getDownloadPriority(tile));
+        notify();
+      }
+    }
+  }
+
+  private synchronized void downloadSucceeded(Worker worker) {
+    if( breaker.record(false, worker.isTrial, System.nanoTime()) )
+      notifyAll();
+    worker.isTrial = false;
+  }
+
+  /**
+   * Returns the number of seconds the tile will be deferred. Failures
+   * where we didn't actually contact the server don't count toward
+   * tripping the circuit breaker.
+   */
+  private synchronized long downloadFailed(long tile, Worker worker,
+      boolean contactedServer) {
+    long now = System.nanoTime();
+    long seconds = 0;
+    var request = queue.get(tile);
+    if( request != null ) {
+      request.failures++;
+      seconds = Math.min(3600, 1L << Math.min(12, request.failures - 1));
+      request.retryAt = now + seconds * 1_000_000_000L;
+    }
+    if( !contactedServer ) {
+      if( worker.isTrial ) {
+        breaker.abandonTrial();
+        notifyAll();
+      }
+    } else if( breaker.record(true, worker.isTrial, now) ) {
+      System.err.println("Circuit breaker for "+tileset.name+" is now "+
+          breaker.state(now));
+      notifyAll();
+    }
+    worker.isTrial = false;
+    return seconds;
+  }
+
+  private class Worker extends BackgroundThread {
+    /** This belongs to the lock on the downloader. */
+    boolean isTrial;
+
+    Worker(String suffix) {
+      super("Tile downloader "+tileset.name+suffix);
+    }
+
+    @Override
+    public void run() {
+      for(;;) {
+        long toDownload;
+        try {
+          toDownload = claimNextTile(this);
+        } catch( InterruptedException e ) {
+          scheduleAbort(e, null);
+          return;
         }
-        if( queue.get(toDownload).isEmpty() ) {
-          queue.remove(toDownload);
-          continue;
+        try {
+          if( !downloadAndDeliver(toDownload) )
+            return;
+        } finally {
+          releaseTile(toDownload, this);
         }
       }
+    }
+
+    private void timedDownload(long tile)
+        throws IOException, TryDownloadLater {
+      var event = new TileMetrics.DownloadEvent();
+      event.begin();
+      long start = System.nanoTime();
+      String outcome = "failed";
+      try {
+        tileset.downloadTile(tile, TileDownloader.this);
+        outcome = "ok";
+      } catch( TryDownloadLater e ) {
+        outcome = "retry";
+        throw e;
+      } finally {
+        tileset.metrics.downloadAttempt(tile, outcome,
+            System.nanoTime() - start, event);
+      }
+    }
 
+    /**
+     * Returns false if the worker should stop.
+     */
+    private boolean downloadAndDeliver(long toDownload) {
       // It's possible that it's become possible to simply _load_ the tile
       // while it was waiting in the queue, so try that first.
-      TileBitmap got = cache.getTile(toDownload, true);
+      TileBitmap got = cache.getTileForBatch(tileset, toDownload, true);
       if( got == null ) {
         try {
-          tileset.downloadTile(toDownload.shortcode, this);
+          timedDownload(toDownload);
         } catch( IOException e ) {
           scheduleAbort(e, null);
-          return;
+          return false;
         } catch( TryDownloadLater e ) {
-          backoffSecs = Math.max(1, backoffSecs * 2);
-          backoffSecs = Math.min(3600, backoffSecs);
-          System.err.println("Waiting "+backoffSecs+
-              " seconds after intermittent failure for "+toDownload);
-          e.getCause().printStackTrace();
-          // SwingUtils.beep();
-          try {
-            Thread.sleep(1000 * backoffSecs);
-            continue;
-          } catch( InterruptedException ee ) {
-            scheduleAbort(ee, null);
-            return;
-          }
+          long seconds = downloadFailed(toDownload, this,
+              !(e instanceof HostLimits.Resting));
+          System.err.println("Deferring "+tileset.tilename(toDownload)+
+              " for "+seconds+" seconds after intermittent failure: "+
+              (e.getCause() != null ? e.getCause() : e.getMessage()));
+          return true;
         }
+        downloadSucceeded(this);
         // Note: perhaps we've already scheduled a loading of this particular
         // tile in the parallel loading thread, but that's okay. Invalidating
         // twice is not a problem, because the invalidation only takes effect
         // if the tile _cannot_ be loaded.
-        got = cache.invalidateMissingAndGet(toDownload, true);
-        if( got == null && isTileInDemand(toDownload.shortcode) )
+        got = cache.invalidateMissingAndGet(tileset, toDownload, true);
+        if( got == null && isTileInDemand(toDownload) )
           throw BadError.of("Failed to load %s even after downloading",
-              tileset.tilename(toDownload.shortcode));
-        backoffSecs = backoffSecs / 2;
+              tileset.tilename(toDownload));
       }
       deliverToSubscribers(toDownload, got);
+      return true;
     }
   }
 
+  synchronized int queuedCount() {
+    return queue.heapSize();
+  }
+
+  synchronized int inFlightCount() {
+    return inFlight.size();
+  }
+
+  synchronized int deferredCount() {
+    return deferred.size();
+  }
+
+  synchronized String breakerState() {
+    return breaker.state(System.nanoTime());
+  }
+
+  synchronized int breakerTrips() {
+    return breaker.trips;
+  }
+
   @Override
   public boolean isTileInDemand(long tile) {
-    var tilespec = new TileSpec(tileset, tile);
     synchronized(this) {
-      return queue.containsKey(tilespec);
+      return queue.containsKey(tile);
     }
   }
 
   @Override
   public void tileIsNowLoadable(long tile) {
     System.err.println("    (received "+tileset.tilename(tile)+")");
+    reloadAndDeliver(tile, false);
+  }
+
+  private void reloadAndDeliver(long tile, boolean downloadIfMissing) {
     context.progressiveLoader.execute(() -> {
-      var spec = new TileSpec(tileset, tile);
       boolean anySubscribers;
       synchronized(this) {
-        anySubscribers = queue.containsKey(spec) || watchers.containsKey(spec);
+        anySubscribers = queue.containsKey(tile) || watchers.containsKey(tile);
+      }
+      var got = cache.invalidateMissingAndGet(tileset, tile, anySubscribers);
+      if( got != null ) {
+        deliverToSubscribers(tile, got);
+      } else if( downloadIfMissing ) {
+        synchronized(this) {
+          var request = queue.get(tile);
+          if( request != null ) offerForDownload(request);
+        }
       }
-      var got = cache.invalidateMissingAndGet(spec, anySubscribers);
-      if( got != null )
-        deliverToSubscribers(spec, got);
     });
   }
 
-  private void deliverToSubscribers(TileSpec spec, TileBitmap finalGot) {
-    Set<Consumer<TileBitmap>> toCall1, toCall2;
+  private void deliverToSubscribers(long tile, TileBitmap finalGot) {
+    Set<Consumer<TileBitmap>> toCall1 = null, toCall2;
     synchronized(this) {
-      toCall1 = queue.remove(spec);
-      toCall2 = watchers.remove(spec);
+      var request = queue.remove(tile);
+      if( request != null ) toCall1 = request.subscribers;
+      toCall2 = watchers.remove(tile);
     }
     if( toCall1 != null )
       toCall1.forEach(c -> c.accept(finalGot));
@@ -0,0 +1,224 @@
+package net.makholm.henning.mapwarper.tiles;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Counters and latency histograms for a single tileset, covering both
+ * the RAM cache and the downloader. They're visible through JMX, in the
+ * periodic dump that can be switched on in the configuration, and (for
+ * individual loads and downloads) as JFR events.
+ */
+public final class TileMetrics implements TileMetricsMBean {
+
+  private final Tileset tileset;
+
+  final LongAdder hits = new LongAdder();
+  final LongAdder misses = new LongAdder();
+  final LongAdder loads = new LongAdder();
+  final LongAdder loadFailures = new LongAdder();
+  final LongAdder evictions = new LongAdder();
+
+  final LongAdder downloads = new LongAdder();
+  final LongAdder downloadFailures = new LongAdder();
+  final LongAdder retries = new LongAdder();
+  final LongAdder bytesDownloaded = new LongAdder();
+  final LongAdder revalidated = new LongAdder();
+  final LongAdder refreshed = new LongAdder();
+
+  final Histogram loadLatency = new Histogram();
+  final Histogram downloadLatency = new Histogram();
+
+  TileMetrics(Tileset tileset) {
+    this.tileset = tileset;
+  }
+
+  void register() {
+    try {
+      var name = new ObjectName("net.makholm.henning.mapwarper:type=Tileset,"+
+          "name="+ObjectName.quote(tileset.name));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+    } catch( InstanceAlreadyExistsException e ) {
+      // Another TileContext in the same JVM got there first. Never mind.
+    } catch( JMException e ) {
+      System.err.println("Could not register metrics for "+tileset.name+
+          ": "+e);
+    }
+  }
+
+  @Override public long getHits() { return hits.sum(); }
+  @Override public long getMisses() { return misses.sum(); }
+  @Override public long getLoads() { return loads.sum(); }
+  @Override public long getLoadFailures() { return loadFailures.sum(); }
+  @Override public long getEvictions() { return evictions.sum(); }
+
+  @Override public long getDownloads() { return downloads.sum(); }
+  @Override public long getDownloadFailures() { return downloadFailures.sum(); }
+  @Override public long getRetries() { return retries.sum(); }
+  @Override public long getBytesDownloaded() { return bytesDownloaded.sum(); }
+  @Override public long getRevalidated() { return revalidated.sum(); }
+  @Override public long getRefreshed() { return refreshed.sum(); }
+
+  @Override
+  public int getQueuedDownloads() {
+    return tileset.downloader.queuedCount();
+  }
+
+  @Override
+  public int getDownloadsInFlight() {
+    return tileset.downloader.inFlightCount();
+  }
+
+  @Override
+  public int getDeferredDownloads() {
+    return tileset.downloader.deferredCount();
+  }
+
+  @Override
+  public String getCircuitBreaker() {
+    return tileset.downloader.breakerState();
+  }
+
+  @Override
+  public int getCircuitBreakerTrips() {
+    return tileset.downloader.breakerTrips();
+  }
+
+  @Override public double getLoadMillisMean() { return loadLatency.meanMillis(); }
+  @Override public double getLoadMillis99() { return loadLatency.percentileMillis(0.99); }
+  @Override public double getDownloadMillisMean() { return downloadLatency.meanMillis(); }
+  @Override public double getDownloadMillis99() { return downloadLatency.percentileMillis(0.99); }
+
+  /**
+   * Called after each attempt to download a tile, with the outcome
+   * being "ok", "retry" or "failed".
+   */
+  void downloadAttempt(long tile, String outcome, long nanos,
+      DownloadEvent event) {
+    switch( outcome ) {
+    case "ok": downloads.increment(); break;
+    case "retry": retries.increment(); break;
+    default: downloadFailures.increment(); break;
+    }
+    downloadLatency.record(nanos);
+    if( event.shouldCommit() ) {
+      event.tileset = tileset.name;
+      event.tile = tileset.tilename(tile);
+      event.outcome = outcome;
+      event.commit();
+    }
+  }
+
+  /** Called after each attempt to load a tile into the RAM cache. */
+  void loadAttempt(long tile, boolean loaded, long nanos, LoadEvent event) {
+    loads.increment();
+    if( !loaded ) loadFailures.increment();
+    loadLatency.record(nanos);
+    if( event.shouldCommit() ) {
+      event.tileset = tileset.name;
+      event.tile = tileset.tilename(tile);
+      event.loaded = loaded;
+      event.commit();
+    }
+  }
+
+  boolean isIdle() {
+    return hits.sum() + misses.sum() + downloads.sum() == 0 &&
+        getQueuedDownloads() == 0 && getDeferredDownloads() == 0;
+  }
+
+  void dump(PrintStream out) {
+    out.printf(Locale.ROOT, "  %s: %d hits, %d misses, %d loads "+
+        "(%d failed, mean %.1f ms, 99%% %.1f ms), %d evicted%n",
+        tileset.name, getHits(), getMisses(), getLoads(), getLoadFailures(),
+        getLoadMillisMean(), getLoadMillis99(), getEvictions());
+    if( getDownloads() + getRetries() + getDownloadFailures() +
+        getQueuedDownloads() > 0 )
+      out.printf(Locale.ROOT, "    %d downloads (%d failed, %d retried, "+
+          "%.1f MB, mean %.0f ms, 99%% %.0f ms), %d queued, %d in flight%n",
+          getDownloads(), getDownloadFailures(), getRetries(),
+          getBytesDownloaded() / 1e6, getDownloadMillisMean(),
+          getDownloadMillis99(), getQueuedDownloads(), getDownloadsInFlight());
+    if( getRevalidated() + getRefreshed() > 0 )
+      out.printf(Locale.ROOT, "    %d stale tiles still good, %d refreshed%n",
+          getRevalidated(), getRefreshed());
+    if( getDeferredDownloads() > 0 || getCircuitBreakerTrips() > 0 )
+      out.printf(Locale.ROOT, "    %d deferred after failures; "+
+          "circuit breaker %s (tripped %d times)%n", getDeferredDownloads(),
+          getCircuitBreaker(), getCircuitBreakerTrips());
+  }
+
+  // -------------------------------------------------------------------------
+
+  /**
+   * Counts durations in buckets whose limits are powers of two
+   * microseconds, which is coarse but cheap and good enough to tell a
+   * slow disk from a slow server.
+   */
+  static final class Histogram {
+    private static final int BUCKETS = 40;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+
+    void record(long nanos) {
+      long micros = Math.max(1, nanos / 1000);
+      int bucket = Math.min(BUCKETS-1, 63 - Long.numberOfLeadingZeros(micros));
+      buckets.incrementAndGet(bucket);
+      count.increment();
+      totalNanos.add(nanos);
+    }
+
+    double meanMillis() {
+      long n = count.sum();
+      return n == 0 ? 0 : totalNanos.sum() / 1e6 / n;
+    }
+
+    /** The upper limit of the bucket the percentile falls in. */
+    double percentileMillis(double fraction) {
+      long n = count.sum();
+      if( n == 0 ) return 0;
+      long wanted = (long)Math.ceil(n * fraction);
+      long seen = 0;
+      for( int i=0; i<BUCKETS; i++ ) {
+        seen += buckets.get(i);
+        if( seen >= wanted )
+          return (2L << i) / 1000.0;
+      }
+      return (2L << (BUCKETS-1)) / 1000.0;
+    }
+  }
+
+  // -------------------------------------------------------------------------
+
+  @Name("net.makholm.henning.mapwarper.TileLoad")
+  @Label("Tile load")
+  @Category({"Mapwarper", "Tiles"})
+  static final class LoadEvent extends Event {
+    @Label("Tileset") String tileset;
+    @Label("Tile") String tile;
+    @Label("Loaded") boolean loaded;
+  }
+
+  @Name("net.makholm.henning.mapwarper.TileDownload")
+  @Label("Tile download")
+  @Category({"Mapwarper", "Tiles"})
+  static final class DownloadEvent extends Event {
+    @Label("Tileset") String tileset;
+    @Label("Tile") String tile;
+    @Label("Outcome") String outcome;
+  }
+
+}
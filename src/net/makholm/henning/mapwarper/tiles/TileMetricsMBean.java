@@ -0,0 +1,32 @@
+package net.makholm.henning.mapwarper.tiles;
+
+/**
+ * What {@link TileMetrics} shows through JMX.
+ */
+public interface TileMetricsMBean {
+
+  long getHits();
+  long getMisses();
+  long getLoads();
+  long getLoadFailures();
+  long getEvictions();
+
+  long getDownloads();
+  long getDownloadFailures();
+  long getRetries();
+  long getBytesDownloaded();
+  long getRevalidated();
+  long getRefreshed();
+
+  int getQueuedDownloads();
+  int getDownloadsInFlight();
+  int getDeferredDownloads();
+  String getCircuitBreaker();
+  int getCircuitBreakerTrips();
+
+  double getLoadMillisMean();
+  double getLoadMillis99();
+  double getDownloadMillisMean();
+  double getDownloadMillis99();
+
+}
@@ -0,0 +1,339 @@
+package net.makholm.henning.mapwarper.tiles;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntFunction;
+import java.util.stream.Stream;
+
+/**
+ * Packed storage for the disk cache of a {@link DiskCachedTileset}, as
+ * an alternative to keeping each tile in a file of its own.
+ *
+ * Tiles are appended to pack files, each of which covers up to
+ * {@link #SLOTS} tile positions as decided by the tileset. Next to each
+ * pack is a memory-mapped index with a fixed-size slot per position,
+ * giving the offset and length of the newest copy of that tile.
+ * Replacing a tile leaves the old copy in the pack as garbage until the
+ * pack is compacted.
+ *
+ * Each copy in the pack is preceded by its shortcode and length, such
+ * that the index can be checked against the data (and rebuilt from it,
+ * if it goes missing).
+ */
+final class TilePacks {
+
+  static final int SLOTS = 1 << 16;
+
+  private static final int SLOT_BYTES = 16;
+  private static final long INDEX_BYTES = (long)SLOTS * SLOT_BYTES;
+  private static final int RECORD_HEADER = 12;
+
+  private final DiskCachedTileset owner;
+  private final Path root;
+
+  TilePacks(DiskCachedTileset owner, Path root) {
+    this.owner = owner;
+    this.root = root;
+  }
+
+  /**
+   * Returns null if the tile isn't there. Otherwise the tile is read into
+   * a buffer of at least the requested size got from {@code buffers}, and
+   * returned with the position and limit around it.
+   */
+  ByteBuffer read(long tile, IntFunction<ByteBuffer> buffers)
+      throws IOException {
+    Pack p = pack(tile, false);
+    if( p == null ) return null;
+    int slot = owner.slotInPack(tile);
+    p.lock.readLock().lock();
+    try {
+      int length = p.length(slot);
+      if( length == 0 ) return null;
+      var buf = buffers.apply(RECORD_HEADER + length);
+      return p.readRecord(tile, p.offset(slot), length, buf);
+    } finally {
+      p.lock.readLock().unlock();
+    }
+  }
+
+  boolean contains(long tile) throws IOException {
+    Pack p = pack(tile, false);
+    if( p == null ) return false;
+    int slot = owner.slotInPack(tile);
+    p.lock.readLock().lock();
+    try {
+      return p.length(slot) != 0;
+    } finally {
+      p.lock.readLock().unlock();
+    }
+  }
+
+  void write(long tile, byte[] data) throws IOException {
+    Pack p = pack(tile, true);
+    int slot = owner.slotInPack(tile);
+    p.lock.writeLock().lock();
+    try {
+      long pos = p.data.size();
+      p.append(pos, tile, ByteBuffer.wrap(data));
+      p.setSlot(slot, pos, data.length);
+    } finally {
+      p.lock.writeLock().unlock();
+    }
+  }
+
+  /** Used when a copy of the tile turns out to be bad. */
+  void forget(long tile) throws IOException {
+    Pack p = pack(tile, false);
+    if( p == null ) return;
+    p.lock.writeLock().lock();
+    try {
+      p.setSlot(owner.slotInPack(tile), 0, 0);
+    } finally {
+      p.lock.writeLock().unlock();
+    }
+  }
+
+  /** Flush everything that has been written to disk. */
+  void force() throws IOException {
+    for( Pack p : openPacks() ) {
+      p.lock.writeLock().lock();
+      try {
+        p.data.force(false);
+        p.index.force();
+      } finally {
+        p.lock.writeLock().unlock();
+      }
+    }
+  }
+
+  /**
+   * Rewrite each pack where more than the given fraction of the file is
+   * garbage. Returns the number of bytes freed.
+   */
+  long compact(double minGarbage) throws IOException {
+    long freed = 0;
+    List<Path> bases = new ArrayList<>();
+    if( Files.isDirectory(root) ) {
+      try( Stream<Path> files = Files.walk(root) ) {
+        files.map(Path::toString)
+        .filter(s -> s.endsWith(".pack"))
+        .forEach(s -> bases.add(Path.of(s.substring(0, s.length()-5))));
+      }
+    }
+    for( Path base : bases ) {
+      Pack p = pack(base, true);
+      p.lock.writeLock().lock();
+      try {
+        long size = p.data.size();
+        long live = 0;
+        for( int slot=0; slot<SLOTS; slot++ ) {
+          int length = p.length(slot);
+          if( length != 0 ) live += RECORD_HEADER + length;
+        }
+        if( size - live > size * minGarbage ) {
+          p.rewrite();
+          freed += size - p.data.size();
+        }
+      } finally {
+        p.lock.writeLock().unlock();
+      }
+    }
+    return freed;
+  }
+
+  // -------------------------------------------------------------------------
+
+  private final Map<Path, Pack> packs = new LinkedHashMap<>();
+  private final Set<Path> knownAbsent = new HashSet<>();
+
+  private Pack pack(long tile, boolean create) throws IOException {
+    return pack(root.resolve(owner.packForTile(tile)), create);
+  }
+
+  private Pack pack(Path base, boolean create) throws IOException {
+    synchronized( packs ) {
+      Pack p = packs.get(base);
+      if( p != null ) return p;
+      if( !create && knownAbsent.contains(base) ) return null;
+      p = new Pack(base);
+      if( !create && !Files.exists(p.dataFile) ) {
+        knownAbsent.add(base);
+        return null;
+      }
+      p.open();
+      knownAbsent.remove(base);
+      packs.put(base, p);
+      return p;
+    }
+  }
+
+  private Pack[] openPacks() {
+    synchronized( packs ) {
+      return packs.values().toArray(new Pack[0]);
+    }
+  }
+
+  private final class Pack {
+    final Path dataFile, indexFile;
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // These are replaced (with the write lock held) by compaction
+    private Arena arena;
+    FileChannel data;
+    MemorySegment index;
+
+    Pack(Path base) {
+      dataFile = base.resolveSibling(base.getFileName()+".pack");
+      indexFile = base.resolveSibling(base.getFileName()+".idx");
+    }
+
+    void open() throws IOException {
+      Files.createDirectories(dataFile.getParent());
+      boolean rebuild = !Files.exists(indexFile) && Files.exists(dataFile);
+      data = FileChannel.open(dataFile, READ, WRITE, CREATE);
+      arena = Arena.ofShared();
+      try( var ich = FileChannel.open(indexFile, READ, WRITE, CREATE) ) {
+        index = ich.map(MapMode.READ_WRITE, 0, INDEX_BYTES, arena);
+      }
+      if( rebuild )
+        rebuildIndex();
+    }
+
+    void close() throws IOException {
+      data.close();
+      arena.close();
+    }
+
+    long offset(int slot) {
+      return index.get(ValueLayout.JAVA_LONG, (long)slot * SLOT_BYTES);
+    }
+
+    int length(int slot) {
+      return index.get(ValueLayout.JAVA_INT, (long)slot * SLOT_BYTES + 8);
+    }
+
+    void setSlot(int slot, long offset, int length) {
+      index.set(ValueLayout.JAVA_LONG, (long)slot * SLOT_BYTES, offset);
+      index.set(ValueLayout.JAVA_INT, (long)slot * SLOT_BYTES + 8, length);
+    }
+
+    /**
+     * Read a tile along with its header, checking it against what the
+     * index says (except for the shortcode, if it is given as 0).
+     */
+    ByteBuffer readRecord(long tile, long pos, int length, ByteBuffer buf)
+        throws IOException {
+      buf.clear().limit(length + RECORD_HEADER);
+      while( buf.hasRemaining() ) {
+        if( data.read(buf, pos + buf.position()) < 0 )
+          throw new IOException("Truncated tile in "+dataFile);
+      }
+      if( (tile != 0 && buf.getLong(0) != tile) || buf.getInt(8) != length )
+        throw new IOException("Index and data disagree in "+dataFile);
+      return buf.position(RECORD_HEADER);
+    }
+
+    void append(long pos, long tile, ByteBuffer body) throws IOException {
+      var header = ByteBuffer.allocate(RECORD_HEADER);
+      header.putLong(tile).putInt(body.remaining()).flip();
+      writeFully(data, pos, header);
+      writeFully(data, pos + RECORD_HEADER, body);
+    }
+
+    private void rebuildIndex() throws IOException {
+      System.err.println("Rebuilding "+indexFile);
+      var header = ByteBuffer.allocate(RECORD_HEADER);
+      long size = data.size();
+      long pos = 0;
+      while( pos + RECORD_HEADER <= size ) {
+        header.clear();
+        while( header.hasRemaining() )
+          data.read(header, pos + header.position());
+        long tile = header.getLong(0);
+        int length = header.getInt(8);
+        if( length <= 0 || pos + RECORD_HEADER + length > size )
+          break;
+        setSlot(owner.slotInPack(tile), pos, length);
+        pos += RECORD_HEADER + length;
+      }
+      if( pos < size ) {
+        System.err.println("  Dropping "+(size-pos)+" bytes of garbage "+
+            "at the end of "+dataFile);
+        data.truncate(pos);
+      }
+    }
+
+    /**
+     * Copy the live tiles into fresh files and swap them in. Called with
+     * the write lock held.
+     */
+    void rewrite() throws IOException {
+      Path newData = dataFile.resolveSibling(dataFile.getFileName()+".new");
+      Path newIndex = indexFile.resolveSibling(indexFile.getFileName()+".new");
+      try( var out = FileChannel.open(newData, WRITE, CREATE,
+          TRUNCATE_EXISTING);
+          var ich = FileChannel.open(newIndex, READ, WRITE, CREATE,
+              TRUNCATE_EXISTING);
+          var tmpArena = Arena.ofConfined() ) {
+        var fresh = ich.map(MapMode.READ_WRITE, 0, INDEX_BYTES, tmpArena);
+        long pos = 0;
+        ByteBuffer scratch = ByteBuffer.allocate(64 << 10);
+        for( int slot=0; slot<SLOTS; slot++ ) {
+          int length = length(slot);
+          if( length == 0 ) continue;
+          long offset = offset(slot);
+          if( scratch.capacity() < RECORD_HEADER + length )
+            scratch = ByteBuffer.allocate(RECORD_HEADER + length);
+          try {
+            readRecord(0, offset, length, scratch);
+          } catch( IOException e ) {
+            System.err.println("  Dropping bad tile from "+dataFile+": "+e);
+            continue;
+          }
+          writeFully(out, pos, scratch.position(0));
+          fresh.set(ValueLayout.JAVA_LONG, (long)slot * SLOT_BYTES, pos);
+          fresh.set(ValueLayout.JAVA_INT, (long)slot * SLOT_BYTES + 8, length);
+          pos += RECORD_HEADER + length;
+        }
+        out.force(true);
+        fresh.force();
+      }
+      close();
+      // If we crash in between these, the index will be rebuilt from
+      // the new pack when it is next opened.
+      Files.delete(indexFile);
+      Files.move(newData, dataFile, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      Files.move(newIndex, indexFile, StandardCopyOption.ATOMIC_MOVE);
+      open();
+    }
+  }
+
+  private static void writeFully(FileChannel ch, long pos, ByteBuffer buf)
+      throws IOException {
+    while( buf.hasRemaining() )
+      pos += ch.write(buf, pos);
+  }
+
+}
@@ -0,0 +1,100 @@
+package net.makholm.henning.mapwarper.tiles;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import net.makholm.henning.mapwarper.util.BackgroundThread;
+
+/**
+ * Revalidates stale tiles in the disk caches, one at a time, and only
+ * while none of the downloaders have anything to do. That way it never
+ * stands in the way of tiles someone is actually waiting for.
+ *
+ * Tiles are found to be stale when they're loaded from the disk cache,
+ * so it's the tiles that are actually being looked at that get fresh.
+ */
+final class TileRefresher extends BackgroundThread {
+
+  /** How long to wait before looking again when the downloaders are busy. */
+  private static final long BUSY_MILLIS = 2000;
+
+  /** Pause between revalidations, to be gentle to the servers. */
+  private static final long PACE_MILLIS = 250;
+
+  private final Map<String, Tileset> tilesets;
+  private boolean startedYet, wanted;
+
+  TileRefresher(Map<String, Tileset> tilesets) {
+    super("Tile refresher");
+    this.tilesets = tilesets;
+  }
+
+  synchronized void wake() {
+    wanted = true;
+    if( startedYet ) {
+      notify();
+    } else {
+      start();
+      startedYet = true;
+    }
+  }
+
+  @Override
+  public void run() {
+    try {
+      for(;;) {
+        synchronized( this ) {
+          while( !wanted ) wait();
+          wanted = false;
+        }
+        while( refreshSome() ) {
+          // keep going
+        }
+      }
+    } catch( InterruptedException e ) {
+      scheduleAbort(e, null);
+    }
+  }
+
+  /**
+   * Refresh one stale tile from each tileset that has any. Returns false
+   * if there were none.
+   */
+  private boolean refreshSome() throws InterruptedException {
+    boolean any = false;
+    for( var tileset : tilesets() ) {
+      if( !(tileset instanceof DiskCachedTileset dct) ) continue;
+      while( !downloadersIdle() )
+        Thread.sleep(BUSY_MILLIS);
+      long tile = dct.nextStaleTile();
+      if( tile == 0 ) continue;
+      any = true;
+      try {
+        dct.refreshTile(tile);
+      } catch( IOException | TryDownloadLater e ) {
+        System.err.println("Could not revalidate "+tileset.tilename(tile)+
+            ": "+e);
+      }
+      Thread.sleep(PACE_MILLIS);
+    }
+    return any;
+  }
+
+  private List<Tileset> tilesets() {
+    synchronized( tilesets ) {
+      return new ArrayList<>(tilesets.values());
+    }
+  }
+
+  private boolean downloadersIdle() {
+    for( var tileset : tilesets() ) {
+      if( tileset.downloader.queuedCount() != 0 ||
+          tileset.downloader.inFlightCount() != 0 )
+        return false;
+    }
+    return true;
+  }
+
+}
@@ -0,0 +1,134 @@
+package net.makholm.henning.mapwarper.tiles;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+import net.makholm.henning.mapwarper.util.LongHashMap;
+
+/**
+ * A persistent map from tile shortcodes to an int, which is always some
+ * kind of date or time. It is read into memory the first time it's used.
+ *
+ * On disk it is a 12-byte record (shortcode and value) per tile, sorted
+ * by shortcode, which for web tilesets groups them by zoom level.
+ *
+ * Not thread safe; the owner must synchronize.
+ */
+final class TileStamps {
+
+  private final Path file;
+  private final int magic;
+
+  /** Null until loaded */
+  private LongHashMap<Integer> stamps;
+  private boolean dirty;
+
+  TileStamps(Path file, int magic) {
+    this.file = file;
+    this.magic = magic;
+  }
+
+  /** Returns 0 if there is no stamp for the tile. */
+  int get(long tile) {
+    load();
+    Integer stamp = stamps.get(tile);
+    return stamp == null ? 0 : stamp;
+  }
+
+  void put(long tile, int stamp) {
+    load();
+    Integer old = stamps.put(tile, stamp);
+    if( old == null || old != stamp ) dirty = true;
+  }
+
+  void remove(long tile) {
+    load();
+    if( stamps.remove(tile) != null ) dirty = true;
+  }
+
+  boolean isDirty() {
+    return dirty;
+  }
+
+  private void load() {
+    if( stamps != null ) return;
+    stamps = new LongHashMap<>();
+    if( !Files.isRegularFile(file) ) return;
+    try( var in = new DataInputStream(new BufferedInputStream(
+        Files.newInputStream(file))) ) {
+      if( in.readInt() != magic )
+        throw new IOException("wrong magic number");
+      int count = in.readInt();
+      for( int i=0; i<count; i++ ) {
+        long tile = in.readLong();
+        stamps.put(tile, in.readInt());
+      }
+    } catch( EOFException e ) {
+      System.err.println("Truncated "+file+"; keeping what was there");
+    } catch( IOException e ) {
+      System.err.println("Cannot read "+file+"; starting afresh: "+e);
+      stamps.clear();
+    }
+  }
+
+  /**
+   * Take a sorted copy of the stamps that pass the filter, to be written
+   * with {@link Snapshot#write()} without holding the owner's lock.
+   */
+  Snapshot snapshot(IntPredicate keep) {
+    load();
+    dirty = false;
+    long[] tiles = new long[stamps.size()];
+    int n = 0;
+    for( int i=0; i<stamps.slots(); i++ )
+      if( stamps.keyAt(i) != 0 && keep.test(stamps.valueAt(i)) )
+        tiles[n++] = stamps.keyAt(i);
+    tiles = Arrays.copyOf(tiles, n);
+    Arrays.sort(tiles);
+    int[] values = new int[n];
+    for( int i=0; i<n; i++ )
+      values[i] = stamps.get(tiles[i]);
+    return new Snapshot(tiles, values);
+  }
+
+  final class Snapshot {
+    private final long[] tiles;
+    private final int[] values;
+
+    private Snapshot(long[] tiles, int[] values) {
+      this.tiles = tiles;
+      this.values = values;
+    }
+
+    void write() {
+      Path tmp = file.resolveSibling(file.getFileName()+".new");
+      try {
+        Files.createDirectories(file.getParent());
+        try( var out = new DataOutputStream(new BufferedOutputStream(
+            Files.newOutputStream(tmp))) ) {
+          out.writeInt(magic);
+          out.writeInt(tiles.length);
+          for( int i=0; i<tiles.length; i++ ) {
+            out.writeLong(tiles[i]);
+            out.writeInt(values[i]);
+          }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      } catch( IOException e ) {
+        System.err.println("Failed to write "+file+": "+e);
+        DiskCachedTileset.tryDeleteFile(tmp);
+      }
+    }
+  }
+
+}
@@ -47,7 +47,11 @@ public abstract class Tileset {
 
   protected final Path cacheRoot;
   protected final String webUrlTemplate;
+  /** How long to believe the server when it says a tile doesn't exist. */
+  protected final int missingDays;
   final TileDownloader downloader;
+  final TileCache.Index ramIndex;
+  public final TileMetrics metrics;
 
   public RGB.TransferFunction transferFunction;
   public final Map<String, RGB.TransferFunction> transferOptions =
@@ -105,12 +109,31 @@ public abstract class Tileset {
    * actual tile, but merely makes it possible to load the tile after
    * it returns.
    *
-   * Currently there's only ever one thread doing downloads for a single
-   * tileset.
+   * There can be up to {@link #maxParallelDownloads()} threads doing
+   * this at the same time for a single tileset, but never for the
+   * same tile.
    */
   protected abstract void downloadTile(long tile, DownloadCallback callback)
       throws IOException, TryDownloadLater;
 
+  /**
+   * True if the server has recently told us that it has no such tile, so
+   * there's no point in asking it again. The downloader won't queue such
+   * tiles, so {@link #loadTile(long)} must produce something for them.
+   */
+  public boolean isKnownMissing(long tile) {
+    return false;
+  }
+
+  /**
+   * The default is to download one tile at a time. Tilesets where
+   * downloads of different tiles are independent of each other can
+   * allow more.
+   */
+  protected int maxParallelDownloads() {
+    return 1;
+  }
+
   public interface DownloadCallback {
     /**
      * {@link Tileset#downloadTile(long, DownloadCallback)} is allowed to
@@ -149,6 +172,12 @@ public abstract class Tileset {
   // -----------------------------------------------------
 
   public static Tileset create(TileContext ctx, String name, Element xml) {
+    Tileset result = construct(ctx, name, xml);
+    result.attach();
+    return result;
+  }
+
+  private static Tileset construct(TileContext ctx, String name, Element xml) {
     String type = xml.getAttribute("type");
     switch(type) {
     case "": return new CommonWebTileset(ctx, name, xml);
@@ -158,12 +187,25 @@ public abstract class Tileset {
     }
   }
 
+  /**
+   * Called by {@link #create} once the tileset is fully constructed, for
+   * setup that hands out references to it. Doing that in a constructor
+   * could let other threads see a half-built subclass.
+   */
+  protected void attach() {
+    // Nothing by default
+  }
+
   public static void defineStandardTilesets(TileContext ctx) {
     ctx.config.tagmap("tileset").forEach((name, xml) -> {
       try {
         Tileset tiles = create(ctx, name, xml);
-        if( tiles != null )
-          ctx.tilesets.put(name, tiles);
+        if( tiles != null ) {
+          synchronized( ctx.tilesets ) {
+            ctx.tilesets.put(name, tiles);
+          }
+          tiles.metrics.register();
+        }
       } catch( DontUseThisTileset e ) {
         if( ctx.config.verbose )
           System.err.println("Cannot construct tileset "+name+
@@ -188,6 +230,8 @@ public abstract class Tileset {
 
     this.webUrlTemplate = stringAttr("weburl", null);
     this.cacheRoot = ctx.caches.forTileset(this);
+    Integer days = ctx.config.integer("diskCache", "", "missingDays");
+    this.missingDays = intAttr("missingDays", days == null ? 30 : days);
 
     this.coarsestZoom = intAttr("coarsestZoom", 1);
     this.configuredGuiZoom = intAttr("guiTargetZoom", 16);
@@ -231,14 +275,21 @@ public abstract class Tileset {
       }
     }
     boundingBox = bbox;
+    ramIndex = ctx.ramCache.newIndex();
     downloader = new TileDownloader(this);
+    metrics = new TileMetrics(this);
   }
 
   protected String stringAttr(String attr, String defval) {
-    if( !xmldef.hasAttribute(attr) )
+    return stringAttr(xmldef, attr, defval);
+  }
+
+  /** For constructors, which shouldn't call methods on themselves. */
+  static String stringAttr(Element xml, String attr, String defval) {
+    if( !xml.hasAttribute(attr) )
       return defval;
     else
-      return xmldef.getAttribute(attr);
+      return xml.getAttribute(attr);
   }
 
   protected String stringAttr(String attr) {
@@ -248,14 +299,18 @@ public abstract class Tileset {
   }
 
   protected int intAttr(String attr, int defval) {
-    if( !xmldef.hasAttribute(attr) )
+    return intAttr(xmldef, name, attr, defval);
+  }
+
+  static int intAttr(Element xml, String tileset, String attr, int defval) {
+    if( !xml.hasAttribute(attr) )
       return defval;
-    String s = xmldef.getAttribute(attr);
+    String s = xml.getAttribute(attr);
     try {
       return Integer.parseInt(s);
     } catch( NumberFormatException e ) {
       throw NiceError.of("tileset parameter %s.%s is not an integer: '%s'",
-          name, attr, s);
+          tileset, attr, s);
     }
   }
 
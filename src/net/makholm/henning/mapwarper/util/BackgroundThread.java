@@ -19,6 +19,22 @@ public abstract class BackgroundThread extends Thread {
     });
   }
 
+  public static Executor pool(String name, int threads) {
+    var counter = new int[1];
+    return Executors.newFixedThreadPool(threads, r -> {
+      String fullName;
+      synchronized( counter ) {
+        fullName = name+" #"+(++counter[0]);
+      }
+      return new BackgroundThread(fullName) {
+        @Override
+        public void run() {
+          r.run();
+        }
+      };
+    });
+  }
+
   @Override
   public abstract void run();
 
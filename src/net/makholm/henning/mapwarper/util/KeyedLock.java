@@ -25,6 +25,23 @@ public final class KeyedLock<K> {
     }
   }
 
+  /**
+   * Like {@link #takeWriter(Object)}, but returns null instead of waiting
+   * if anyone else holds the lock or is waiting for it.
+   */
+  public CleanCloser tryWriter(K key) {
+    var sublock = slipmap.get(key);
+    if( sublock.get().tryAcquireWrite() ) {
+      return () -> {
+        sublock.get().releaseWrite();
+        sublock.close();
+      };
+    } else {
+      sublock.close();
+      return null;
+    }
+  }
+
   /**
    * A <em>writer</em> will block until it can acquire the lock exclusively.
    */
@@ -69,6 +86,13 @@ public final class KeyedLock<K> {
       activeWriter = true;
     }
 
+    synchronized boolean tryAcquireWrite() {
+      if( activeWriter || activeReaders != 0 || waitingWriters != 0 )
+        return false;
+      activeWriter = true;
+      return true;
+    }
+
     synchronized void releaseWrite() {
       activeWriter = false;
       if( waitingWriters != 0 )
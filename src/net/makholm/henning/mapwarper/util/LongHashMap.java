@@ -0,0 +1,170 @@
+package net.makholm.henning.mapwarper.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongFunction;
+
+/**
+ * An open-addressing hash map from nonzero {@code long} keys, such as
+ * tile shortcodes (which are never 0), to objects. Lookups don't box or
+ * allocate anything.
+ *
+ * Not thread safe; the owner must provide its own locking.
+ */
+public final class LongHashMap<V> {
+
+  private long[] keys;
+  private Object[] values;
+  private int mask;
+  private int size;
+
+  public LongHashMap() {
+    this(8);
+  }
+
+  public LongHashMap(int expectedSize) {
+    int capacity = 16;
+    while( capacity < 2 * expectedSize )
+      capacity <<= 1;
+    allocate(capacity);
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    values = new Object[capacity];
+    mask = capacity - 1;
+  }
+
+  private int home(long key) {
+    return LyngHash.hash64to32(key) & mask;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  @SuppressWarnings("unchecked")
+  public V get(long key) {
+    for( int i = home(key); ; i = (i+1) & mask ) {
+      long k = keys[i];
+      if( k == key )
+        return key == 0 ? null : (V)values[i];
+      else if( k == 0 )
+        return null;
+    }
+  }
+
+  public boolean containsKey(long key) {
+    return get(key) != null;
+  }
+
+  /**
+   * Null values are not supported; use {@link #remove(long)} instead.
+   */
+  @SuppressWarnings("unchecked")
+  public V put(long key, V value) {
+    if( key == 0 || value == null )
+      throw BadError.of("Cannot put %d -> %s in a LongHashMap", key, value);
+    int i = home(key);
+    for( ; keys[i] != 0; i = (i+1) & mask ) {
+      if( keys[i] == key ) {
+        V old = (V)values[i];
+        values[i] = value;
+        return old;
+      }
+    }
+    keys[i] = key;
+    values[i] = value;
+    if( 2 * ++size > keys.length )
+      grow();
+    return null;
+  }
+
+  public V computeIfAbsent(long key, LongFunction<? extends V> maker) {
+    V got = get(key);
+    if( got == null ) {
+      got = maker.apply(key);
+      put(key, got);
+    }
+    return got;
+  }
+
+  @SuppressWarnings("unchecked")
+  public V remove(long key) {
+    if( key == 0 ) return null;
+    int gap = home(key);
+    for( ; keys[gap] != key; gap = (gap+1) & mask ) {
+      if( keys[gap] == 0 )
+        return null;
+    }
+    V old = (V)values[gap];
+    // Shift later members of the probe sequence back into the gap,
+    // unless that would move them to before their home slot.
+    for( int j = (gap+1) & mask; keys[j] != 0; j = (j+1) & mask ) {
+      if( ((j - home(keys[j])) & mask) >= ((j - gap) & mask) ) {
+        keys[gap] = keys[j];
+        values[gap] = values[j];
+        gap = j;
+      }
+    }
+    keys[gap] = 0;
+    values[gap] = null;
+    size--;
+    return old;
+  }
+
+  public void clear() {
+    Arrays.fill(keys, 0);
+    Arrays.fill(values, null);
+    size = 0;
+  }
+
+  private void grow() {
+    long[] oldKeys = keys;
+    Object[] oldValues = values;
+    allocate(oldKeys.length * 2);
+    for( int i=0; i<oldKeys.length; i++ ) {
+      long k = oldKeys[i];
+      if( k != 0 ) {
+        int j = home(k);
+        while( keys[j] != 0 ) j = (j+1) & mask;
+        keys[j] = k;
+        values[j] = oldValues[i];
+      }
+    }
+  }
+
+  // -------------------------------------------------------------------------
+  // Allocation-free iteration:
+  //
+  //   for( int i = 0; i < map.slots(); i++ )
+  //     if( map.keyAt(i) != 0 ) ... map.valueAt(i) ...
+
+  public int slots() {
+    return keys.length;
+  }
+
+  /** Returns 0 for an empty slot. */
+  public long keyAt(int slot) {
+    return keys[slot];
+  }
+
+  @SuppressWarnings("unchecked")
+  public V valueAt(int slot) {
+    return (V)values[slot];
+  }
+
+  public List<V> values() {
+    List<V> result = new ArrayList<>(size);
+    for( int i=0; i<keys.length; i++ )
+      if( keys[i] != 0 )
+        result.add(valueAt(i));
+    return result;
+  }
+
+}
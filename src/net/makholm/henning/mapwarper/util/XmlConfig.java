@@ -77,9 +77,13 @@ public class XmlConfig {
   }
 
   public void override(String tag, String name, String value) {
+    override(tag, name, "value", value);
+  }
+
+  public void override(String tag, String name, String attr, String value) {
     Element elt = freshElement(tag);
     elt.setAttribute("name", name);
-    elt.setAttribute("value",  value);
+    elt.setAttribute(attr,  value);
     makeTagmap(tag).put(name, elt);
   }
 